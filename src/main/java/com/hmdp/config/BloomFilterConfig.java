@@ -0,0 +1,67 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.RedisBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+
+/**
+ * 各类实体的布隆过滤器，CacheClient查询对应前缀的缓存前先用它排除一定不存在的id
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(name = "hmdp.bloom.enabled", havingValue = "true", matchIfMissing = true)
+public class BloomFilterConfig {
+    @Autowired // 用ObjectProvider延迟获取，避免配置类依赖自己创建的bean
+    private ObjectProvider<RedisBloomFilter> bloomFilters;
+
+    @Value("${hmdp.bloom.batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * 店铺id的布隆过滤器，按id升序分批扫描 tb_shop 构建
+     */
+    @Bean(initMethod = "init")
+    public RedisBloomFilter shopBloomFilter(ShopMapper shopMapper, StringRedisTemplate stringRedisTemplate,
+                                            RedisMessageListenerContainer redisMessageListenerContainer,
+                                            @Value("${hmdp.bloom.shop.expected-insertions:1000000}") long expectedInsertions,
+                                            @Value("${hmdp.bloom.shop.fpp:0.01}") double fpp) {
+        return new RedisBloomFilter("shop", CACHE_SHOP_KEY, expectedInsertions, fpp,
+                lastId -> shopMapper.selectList(new QueryWrapper<Shop>()
+                                .select("id")
+                                .gt("id", lastId)
+                                .orderByAsc("id")
+                                .last("LIMIT " + batchSize))
+                        .stream().map(Shop::getId).collect(Collectors.toList()),
+                stringRedisTemplate, redisMessageListenerContainer);
+    }
+
+    /**
+     * 定时重建，已删除的id留下的位被清掉，误判率回到设计值
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.rebuild-interval:3600000}",
+            initialDelayString = "${hmdp.bloom.rebuild-interval:3600000}")
+    public void rebuildBloomFilters() {
+        bloomFilters.orderedStream().forEach(bloomFilter -> {
+            try {
+                bloomFilter.refresh();
+            } catch (Exception e) {
+                log.error("重建布隆过滤器{}失败", bloomFilter.getName(), e);
+            }
+        });
+    }
+}
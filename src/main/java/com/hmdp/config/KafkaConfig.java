@@ -0,0 +1,74 @@
+package com.hmdp.config;
+
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.config.TopicBuilder;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
+
+import java.util.Map;
+
+import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER_RETRY_1;
+import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER_RETRY_2;
+import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER_RETRY_3;
+import static com.hmdp.utils.KafkaConstants.TOPIC_SAVE_ORDER_FAILED;
+
+@Configuration
+public class KafkaConfig {
+    @Value("${hmdp.order.consumer.batch-size:500}")
+    private int batchSize;
+    @Value("${hmdp.order.consumer.batch-max-wait:100}")
+    private int batchMaxWaitMs;
+    @Value("${hmdp.order.consumer.batch-min-bytes:16384}")
+    private int batchMinBytes;
+    @Value("${hmdp.order.retry.partitions:3}")
+    private int retryPartitions;
+
+    /**
+     * 批量消费的监听容器：一次poll最多batch-size条，broker端凑够batch-min-bytes或等满batch-max-wait毫秒后返回
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, byte[]> batchKafkaListenerContainerFactory(
+            KafkaProperties kafkaProperties) {
+        Map<String, Object> props = kafkaProperties.buildConsumerProperties();
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, batchSize);
+        props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, batchMaxWaitMs);
+        props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, batchMinBytes);
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+
+        ConcurrentKafkaListenerContainerFactory<String, byte[]> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(new DefaultKafkaConsumerFactory<>(props));
+        factory.setBatchListener(true);
+        // 事务提交后由监听器手动提交位点
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+        return factory;
+    }
+
+    /**
+     * 重试主题和死信主题，启动时由KafkaAdmin创建（已存在则跳过）
+     */
+    @Bean
+    public NewTopic createOrderRetry1Topic() {
+        return TopicBuilder.name(TOPIC_CREATE_ORDER_RETRY_1).partitions(retryPartitions).build();
+    }
+
+    @Bean
+    public NewTopic createOrderRetry2Topic() {
+        return TopicBuilder.name(TOPIC_CREATE_ORDER_RETRY_2).partitions(retryPartitions).build();
+    }
+
+    @Bean
+    public NewTopic createOrderRetry3Topic() {
+        return TopicBuilder.name(TOPIC_CREATE_ORDER_RETRY_3).partitions(retryPartitions).build();
+    }
+
+    @Bean
+    public NewTopic saveOrderFailedTopic() {
+        return TopicBuilder.name(TOPIC_SAVE_ORDER_FAILED).partitions(retryPartitions).build();
+    }
+}
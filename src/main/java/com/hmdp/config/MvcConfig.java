@@ -20,6 +20,7 @@ public class MvcConfig implements WebMvcConfigurer {
                 .excludePathPatterns(
                         "/shop/**",
                         "/voucher/**",
+                        "/monitor/**",
                         "/shop-type/**",
                         "/upload/**",
                         "/blog/hot",
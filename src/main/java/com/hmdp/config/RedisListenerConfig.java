@@ -0,0 +1,85 @@
+package com.hmdp.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Slf4j
+@Configuration
+public class RedisListenerConfig {
+    /**
+     * 待分发消息的队列容量
+     */
+    @Value("${hmdp.listener.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Resource
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * 上次同步以来丢弃的消息数，大于0时由分发线程发布 {@link RedisListenerOverflowEvent}
+     */
+    private final AtomicLong unsynced = new AtomicLong();
+    private ThreadPoolExecutor dispatcher;
+
+    /**
+     * 全节点共用一个订阅连接，各组件在初始化时注册自己关心的频道
+     * <p>
+     * 消息由单个线程按收到的顺序分发，不同频道之间也保持发布顺序（如同一张券的售罄和补货）。
+     * 收消息的是Redis客户端的IO线程，不能阻塞，队列满时只能丢弃；丢弃后分发线程处理完下一条消息就发布
+     * {@link RedisListenerOverflowEvent}，各订阅方从Redis重新同步本地状态，丢掉的消息不会让本地状态一直过时。
+     * 耗时的处理（如重新加载秒杀券目录）由订阅方转交自己的线程，不占用分发线程。
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        dispatcher = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                task -> new Thread(task, "redis-listener"),
+                (task, executor) -> {
+                    unsynced.incrementAndGet();
+                    if (dropped.incrementAndGet() % 1000 == 1) {
+                        log.error("Redis订阅消息积压超过{}条，丢弃消息，累计丢弃{}条", queueCapacity, dropped.get());
+                    }
+                }) {
+            @Override
+            protected void afterExecute(Runnable task, Throwable t) {
+                // 队列满时才会丢弃，之后一定还有消息要分发，在下一条消息处理完后同步
+                long count = unsynced.getAndSet(0);
+                if (count > 0) {
+                    log.warn("Redis订阅消息丢弃{}条，通知各订阅方重新同步本地状态", count);
+                    try {
+                        applicationEventPublisher.publishEvent(new RedisListenerOverflowEvent(RedisListenerConfig.this, count));
+                    } catch (Exception e) {
+                        log.error("重新同步本地状态失败", e);
+                    }
+                }
+            }
+        };
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.setTaskExecutor(dispatcher);
+        // 订阅本身占一个长期运行的线程，不能占用分发线程
+        container.setSubscriptionExecutor(new SimpleAsyncTaskExecutor("redis-subscription-"));
+        return container;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+}
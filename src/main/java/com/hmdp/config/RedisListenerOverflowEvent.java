@@ -0,0 +1,23 @@
+package com.hmdp.config;
+
+import lombok.Getter;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Redis订阅消息积压超过队列容量、有消息被丢弃后，在分发线程上发布
+ * <p>
+ * 丢掉的可能是缓存失效、售罄/补货、订单状态等任意频道的消息，订阅方收到后从Redis重新同步本地状态，
+ * 或整体清空本地副本，不依赖被丢弃的消息。
+ */
+@Getter
+public class RedisListenerOverflowEvent extends ApplicationEvent {
+    /**
+     * 自上次同步以来丢弃的消息数
+     */
+    private final long dropped;
+
+    public RedisListenerOverflowEvent(Object source, long dropped) {
+        super(source);
+        this.dropped = dropped;
+    }
+}
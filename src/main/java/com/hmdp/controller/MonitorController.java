@@ -0,0 +1,88 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.event.KafkaOrderConsumer;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillWaitingRoom;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 运行指标
+ */
+@RestController
+@RequestMapping("/monitor")
+public class MonitorController {
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    private SeckillStockLease seckillStockLease;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheClient cacheClient;
+    @Autowired // 按类型注入，@Resource按字段名会直接匹配到KafkaOrderConsumer本身
+    private ObjectProvider<KafkaOrderConsumer> kafkaOrderConsumer;
+
+    /**
+     * 各秒杀券放行、被本地券桶/用户桶/脚本滑动窗口拦截的请求数
+     */
+    @GetMapping("seckill/limit")
+    public Result seckillLimit() {
+        return Result.ok(seckillRateLimiter.stats());
+    }
+
+    /**
+     * 租约模式各券的本地剩余库存、待确认请求数和平均每次脚本确认的请求数
+     */
+    @GetMapping("seckill/lease")
+    public Result seckillLease() {
+        return Result.ok(seckillStockLease.stats());
+    }
+
+    /**
+     * 各等候室的发号数、放行水位、排队人数和是否已关闭
+     */
+    @GetMapping("seckill/room")
+    public Result seckillRoom() {
+        return Result.ok(seckillWaitingRoom.stats());
+    }
+
+    /**
+     * 各key前缀的top-K访问热度和当前热点key
+     */
+    @GetMapping("hotkeys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.stats());
+    }
+
+    /**
+     * 一级缓存和Redis各自的命中次数、命中率，一级缓存的大小和淘汰情况
+     */
+    @GetMapping("cache")
+    public Result cache() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 逐条消费下单事件的队列深度、处理中订单数、未提交位点数和暂停状态
+     */
+    @GetMapping("order/consumer")
+    public Result orderConsumer() {
+        KafkaOrderConsumer consumer = kafkaOrderConsumer.getIfAvailable();
+        if (consumer == null) {
+            return Result.fail("未启用逐条消费");
+        }
+        return Result.ok(consumer.stats());
+    }
+}
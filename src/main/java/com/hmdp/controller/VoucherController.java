@@ -3,6 +3,7 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillReconcileService;
 import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
 
@@ -22,6 +23,8 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private ISeckillReconcileService seckillReconcileService;
 
     /**
      * 新增普通券
@@ -45,6 +48,39 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 秒杀券补货
+     * @param voucherId 优惠券id
+     * @param count 补货数量
+     * @return 无
+     */
+    @PutMapping("seckill/{id}/stock")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        return voucherService.addSeckillStock(voucherId, count);
+    }
+
+    /**
+     * 开始对账秒杀券的Redis与数据库
+     * @param voucherId 优惠券id
+     * @param repair 是否修复差异
+     * @return 对账任务
+     */
+    @PostMapping("seckill/{id}/reconcile")
+    public Result reconcileSeckill(@PathVariable("id") Long voucherId,
+                                   @RequestParam(value = "repair", defaultValue = "false") Boolean repair) {
+        return seckillReconcileService.reconcile(voucherId, repair);
+    }
+
+    /**
+     * 查询最近一次对账结果
+     * @param voucherId 优惠券id
+     * @return 对账结果
+     */
+    @GetMapping("seckill/{id}/reconcile")
+    public Result queryReconcileReport(@PathVariable("id") Long voucherId) {
+        return seckillReconcileService.queryReport(voucherId);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
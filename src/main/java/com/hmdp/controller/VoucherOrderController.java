@@ -1,14 +1,22 @@
 package com.hmdp.controller;
 
 
+import com.hmdp.dto.OrderStatus;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusHub;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -23,8 +31,64 @@ import javax.annotation.Resource;
 public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private OrderStatusHub orderStatusHub;
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestParam(value = "quantity", defaultValue = "1") Integer quantity) {
+        return voucherOrderService.seckillVoucher(voucherId, quantity);
+    }
+
+    /**
+     * 异步秒杀，Tomcat线程在脚本执行和投递订单期间不被占用
+     */
+    @PostMapping("seckill/{id}/async")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId,
+                                                         @RequestParam(value = "quantity", defaultValue = "1") Integer quantity) {
+        return voucherOrderService.seckillVoucherAsync(voucherId, quantity);
+    }
+
+    /**
+     * 进入秒杀等候室领取排队号
+     */
+    @PostMapping("room/{id}")
+    public Result joinWaitingRoom(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.joinWaitingRoom(voucherId);
+    }
+
+    /**
+     * 查询排队位置，客户端轮询这个接口，等到已放行后再秒杀
+     * @param ticket 进入等候室时领到的排队号
+     */
+    @GetMapping("room/{id}")
+    public Result queryWaitingRoom(@PathVariable("id") Long voucherId, @RequestParam("ticket") Long ticket) {
+        return voucherOrderService.queryWaitingRoom(voucherId, ticket);
+    }
+
+    /**
+     * 查询秒杀订单状态
+     * @param orderId 订单id
+     * @param wait 为true时长轮询，等到订单落库或失败后再返回
+     * @return QUEUED、CREATED、FAILED
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "wait", defaultValue = "false") Boolean wait) {
+        if (wait) {
+            return orderStatusHub.poll(orderId);
+        }
+        DeferredResult<Result> result = new DeferredResult<>();
+        OrderStatus status = orderStatusHub.query(orderId);
+        result.setResult(status == null ? Result.fail("订单不存在") : Result.ok(status.name()));
+        return result;
+    }
+
+    /**
+     * 通过SSE推送秒杀订单状态，推送终态后结束
+     * @param orderId 订单id
+     */
+    @GetMapping(value = "{id}/status/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamOrderStatus(@PathVariable("id") Long orderId) {
+        return orderStatusHub.stream(orderId);
     }
 }
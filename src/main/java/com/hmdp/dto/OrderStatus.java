@@ -0,0 +1,45 @@
+package com.hmdp.dto;
+
+/**
+ * 秒杀订单状态，Redis中只保存一个字符的状态码
+ */
+public enum OrderStatus {
+    /**
+     * 已获得秒杀资格，订单在队列中等待落库
+     */
+    QUEUED('Q'),
+    /**
+     * 订单已落库
+     */
+    CREATED('C'),
+    /**
+     * 订单创建失败
+     */
+    FAILED('F');
+
+    private final char code;
+
+    OrderStatus(char code) {
+        this.code = code;
+    }
+
+    public String code() {
+        return String.valueOf(code);
+    }
+
+    public boolean isFinal() {
+        return this != QUEUED;
+    }
+
+    public static OrderStatus ofCode(String code) {
+        if (code == null || code.isEmpty()) {
+            return null;
+        }
+        for (OrderStatus status : values()) {
+            if (status.code == code.charAt(0)) {
+                return status;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,49 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一张秒杀券Redis与数据库的对账结果
+ */
+@Data
+public class ReconcileReport {
+    private Long voucherId;
+    /**
+     * running：对账中；done：已完成；failed：失败
+     */
+    private String state;
+    private Boolean repair;
+    /**
+     * Redis订单hash中的已购件数之和
+     */
+    private Long redisOrders;
+    /**
+     * 数据库中订单的件数之和
+     */
+    private Long dbOrders;
+    /**
+     * Redis有、数据库没有的件数（超过宽限期仍未落库）
+     */
+    private Long missingOrders;
+    /**
+     * 数据库有、Redis没有的件数
+     */
+    private Long extraOrders;
+    private List<Long> missingSample = new ArrayList<>();
+    private List<Long> extraSample = new ArrayList<>();
+    private Long redisStock;
+    private Long dbStock;
+    /**
+     * Redis库存减去按数据库推算的Redis库存，为0表示一致
+     */
+    private Long stockDelta;
+    private Long repairedMissing;
+    private Long repairedExtra;
+    private Long repairedStock;
+    private Long beginTime;
+    private Long costMillis;
+    private String errorMsg;
+}
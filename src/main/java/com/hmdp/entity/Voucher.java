@@ -78,6 +78,30 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存分片数，大于1时库存拆分到多个Redis key上
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
+    /**
+     * 每人限购数量，不填默认1
+     */
+    @TableField(exist = false)
+    private Integer userLimit;
+
+    /**
+     * 节点一次租用的库存数量，大于0时按节点本地租约扣减库存，只对不分片的券生效
+     */
+    @TableField(exist = false)
+    private Integer leaseBlock;
+
+    /**
+     * 等候室每秒放行人数，大于0时用户先排队领号，按号码分批放行后才能秒杀
+     */
+    @TableField(exist = false)
+    private Integer waitingRoomRate;
+
     /**
      * 生效时间
      */
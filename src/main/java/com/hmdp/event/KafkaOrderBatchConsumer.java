@@ -0,0 +1,57 @@
+package com.hmdp.event;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER;
+
+/**
+ * 批量消费下单事件，hmdp.order.consumer.mode=batch 时替代 {@link KafkaOrderConsumer}
+ */
+@Component
+@Slf4j
+@ConditionalOnExpression("'${hmdp.order.queue:kafka}' == 'kafka' && '${hmdp.order.consumer.mode:voucher}' == 'batch'")
+public class KafkaOrderBatchConsumer {
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @KafkaListener(topics = {TOPIC_CREATE_ORDER}, containerFactory = "batchKafkaListenerContainerFactory")
+    public void voucherOrderBatchHandler(List<ConsumerRecord<String, byte[]>> records, Acknowledgment ack) {
+        // 1.解析整批消息
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, byte[]> record : records) {
+            VoucherOrder voucherOrder = parseVoucherOrder(record);
+            if (voucherOrder != null) {
+                voucherOrders.add(voucherOrder);
+            }
+        }
+        // 2.一个事务内批量创建订单，整批失败时退化为逐条处理
+        if (!voucherOrders.isEmpty()) {
+            voucherOrderService.handleVoucherOrderBatch(voucherOrders);
+        }
+        // 3.事务提交后再提交位点
+        ack.acknowledge();
+    }
+
+    private VoucherOrder parseVoucherOrder(ConsumerRecord<String, byte[]> record) {
+        if (record == null || record.value() == null) {
+            log.error("消息的内容为空!");
+            return null;
+        }
+        VoucherOrder voucherOrder = OrderEventCodec.decode(record.value());
+        if (voucherOrder == null) {
+            log.error("消息格式错误!");
+        }
+        return voucherOrder;
+    }
+}
@@ -1,59 +1,363 @@
 package com.hmdp.event;
 
-import com.alibaba.fastjson.JSONObject;
-import com.hmdp.entity.Event;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.KeyAffinityExecutor;
+import com.hmdp.utils.WeightedLaneExecutor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.event.EventListener;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER;
 
+/**
+ * 逐条消费下单事件
+ * <p>
+ * single：线程池处理，每单用Redisson锁 lock:order:{userId} 防止同一用户并发下单；
+ * affine：同一用户同一张券的订单落在同一分区、同一消费者，
+ * 再按userId固定分配到同一条lane串行处理，不再需要分布式锁，不同用户之间仍然并行。
+ * voucher：每张券一条有界lane，工作线程按权重在各券之间公平调度，一场热门秒杀积压时不会拖住其他券的落库；
+ * 某张券的lane排满时只暂停承载它的分区（{@link VoucherPartitioner}把一张券固定到少数几个分区），回落后恢复。
+ * 容器整体恢复或再均衡会把这些分区一并恢复，每次收到消息和容器空闲时都与消费者实际的暂停状态对齐，需要时重新暂停。
+ * <p>
+ * 背压：已派发未完成的订单达到 max-in-flight 时暂停监听容器，回落到 resume-percent 以下再恢复，
+ * 线程池队列有界，内存占用不随流量增长。订单落库（事务提交）或转入重试主题（broker确认）后才确认，按分区位点顺序提交。
+ * <p>
+ * 再均衡：分区被收回时在 revoke-wait 内等待它已派发的订单处理完，让确认赶在容器提交位点之前；
+ * 之后丢弃该分区的跟踪状态，超时仍未完成的订单不再确认，由新的消费者从已提交位点重新消费（落库按订单id幂等）。
+ * 同一个监听器也会收到重试主题的再均衡回调，只处理下单主题的分区。
+ */
 @Component
 @Slf4j
-public class KafkaOrderConsumer{
+@ConditionalOnExpression("'${hmdp.order.queue:kafka}' == 'kafka' && " +
+        "('${hmdp.order.consumer.mode:voucher}' == 'single' || '${hmdp.order.consumer.mode:voucher}' == 'affine' " +
+        "|| '${hmdp.order.consumer.mode:voucher}' == 'voucher')")
+public class KafkaOrderConsumer implements ConsumerAwareRebalanceListener {
+    public static final String LISTENER_ID = "voucherOrderConsumer";
+
     @Resource
     private IVoucherOrderService voucherOrderService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
-    private static final ExecutorService executorService = Executors.newFixedThreadPool(10);
+    private OrderQueue orderQueue;
+    @Resource
+    private KafkaListenerEndpointRegistry kafkaListenerEndpointRegistry;
 
-    // 消费下单事件
-    @KafkaListener(topics = {TOPIC_CREATE_ORDER})
-    public void VoucherOrderHandler(ConsumerRecord record){
-        if (record == null || record.value() == null) {
-            log.error("消息的内容为空!");
-            return;
+    @Value("${hmdp.order.consumer.mode:voucher}")
+    private String mode;
+    @Value("${hmdp.order.consumer.threads:10}")
+    private int threads;
+    @Value("${hmdp.order.consumer.max-in-flight:2000}")
+    private int maxInFlight;
+    @Value("${hmdp.order.consumer.resume-percent:50}")
+    private int resumePercent;
+    @Value("${hmdp.order.consumer.lane-capacity:500}")
+    private int laneCapacity;
+    @Value("${hmdp.order.consumer.revoke-wait:5000}")
+    private long revokeWait;
+    /**
+     * 各券lane的权重，格式 voucherId:weight,voucherId:weight，未配置的券权重为1
+     */
+    @Value("${hmdp.order.consumer.lane-weights:}")
+    private String laneWeights;
+
+    private ThreadPoolExecutor executorService;
+    private KeyAffinityExecutor affinityExecutor;
+    private WeightedLaneExecutor voucherLanes;
+    /**
+     * 因券lane排满而暂停的分区 -> 排满的券，只在消费者线程上修改
+     */
+    private final Map<TopicPartition, Set<Long>> pausedPartitions = new ConcurrentHashMap<>();
+    private final AtomicLong partitionPauseCount = new AtomicLong();
+    private final PartitionAckTracker ackTracker = new PartitionAckTracker();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong pauseCount = new AtomicLong();
+    private volatile boolean paused;
+
+    @PostConstruct
+    private void init() {
+        // 暂停生效前已经拉取到的一批消息仍会投递过来，队列留出余量；真正满了才阻塞监听线程
+        int capacity = maxInFlight * 2;
+        if ("affine".equals(mode)) {
+            affinityExecutor = new KeyAffinityExecutor(threads, capacity);
+        } else if ("voucher".equals(mode)) {
+            voucherLanes = new WeightedLaneExecutor("order-lane", threads, laneCapacity, resumePercent,
+                    parseWeights(laneWeights));
+        } else {
+            executorService = KeyAffinityExecutor.newBoundedExecutor(threads, capacity);
         }
+    }
 
-        Event event = JSONObject.parseObject(record.value().toString(), Event.class);
-        if (event == null) {
+    // 消费下单事件
+    @KafkaListener(id = LISTENER_ID, topics = {TOPIC_CREATE_ORDER})
+    public void VoucherOrderHandler(ConsumerRecord<String, byte[]> record, Acknowledgment ack, Consumer<?, ?> consumer){
+        if (voucherLanes != null) {
+            syncPartitions(consumer);
+        }
+        PartitionAckTracker.Pending pending = ackTracker.track(record.partition(), record.offset(), ack);
+        VoucherOrder voucherOrder = record.value() == null ? null : OrderEventCodec.decode(record.value());
+        if (voucherOrder == null) {
             log.error("消息格式错误!");
+            ackTracker.complete(pending);
             return;
         }
 
-        executorService.submit(() -> {
-            Map<String, Object> data = event.getData();
-            VoucherOrder voucherOrder = new VoucherOrder()
-                    .setId(event.getEntityId())
-                    .setUserId(event.getUserId())
-                    .setVoucherId(Long.valueOf(data.get("voucherId").toString()));
-            voucherOrderService.handleVoucherOrder(voucherOrder);
+        inFlight.incrementAndGet();
+        // 落库成功或可靠地转入重试后才确认；转入重试和补偿都失败时不确认，本分区后续位点也不再提交，重启或再均衡后重新投递
+        Runnable task = () -> process(voucherOrder).whenComplete((result, ex) -> {
+            if (ex == null) {
+                ackTracker.complete(pending);
+            } else {
+                log.error("订单{}未能转入重试，不确认位点", voucherOrder.getId(), ex);
+            }
+            onTaskDone();
         });
+        if (affinityExecutor != null) {
+            // 同一用户的订单在同一条lane上串行
+            affinityExecutor.execute(voucherOrder.getUserId(), task);
+        } else if (voucherLanes != null) {
+            // 按券分lane，lane排满时暂停本分区
+            if (voucherLanes.execute(voucherOrder.getVoucherId(), record.timestamp(), task)) {
+                pausePartition(consumer, new TopicPartition(record.topic(), record.partition()), voucherOrder.getVoucherId());
+            }
+        } else {
+            executorService.execute(task);
+        }
+        if (inFlight.get() >= maxInFlight) {
+            pause();
+        }
+    }
+
+    /**
+     * 落库失败时投递到重试主题，不在消费线程上等待重试，不阻塞后续位点的提交
+     * @return 落库成功或转入重试后完成，转入重试失败时异常完成
+     */
+    private CompletableFuture<Void> process(VoucherOrder voucherOrder) {
+        try {
+            if (affinityExecutor != null) {
+                // lane内串行，直接在事务中创建订单
+                voucherOrderService.createVoucherOrder(voucherOrder);
+            } else {
+                voucherOrderService.handleVoucherOrder(voucherOrder);
+            }
+            return CompletableFuture.completedFuture(null);
+        } catch (Exception e) {
+            log.error("创建订单失败，转入重试，订单id：{}", voucherOrder.getId(), e);
+            return orderQueue.retry(voucherOrder, 1, e.toString());
+        }
+    }
+
+    /**
+     * lane已满的券又收到订单：分区没有处于暂停状态（首次排满，或被容器恢复、再均衡恢复）就暂停
+     */
+    private void pausePartition(Consumer<?, ?> consumer, TopicPartition partition, Long voucherId) {
+        pausedPartitions.computeIfAbsent(partition, p -> ConcurrentHashMap.newKeySet()).add(voucherId);
+        if (!consumer.paused().contains(partition)) {
+            consumer.pause(Collections.singleton(partition));
+            partitionPauseCount.incrementAndGet();
+            log.warn("优惠券{}待处理订单达到{}，暂停分区{}", voucherId, laneCapacity, partition);
+        }
+    }
+
+    /**
+     * 与消费者实际的暂停状态对齐：排满的券都回落到恢复水位后恢复分区，还有券排满但分区已被恢复的重新暂停；
+     * 只能在消费者线程上调用
+     */
+    private void syncPartitions(Consumer<?, ?> consumer) {
+        if (pausedPartitions.isEmpty()) {
+            return;
+        }
+        Set<TopicPartition> assignment = consumer.assignment();
+        Set<TopicPartition> consumerPaused = consumer.paused();
+        List<TopicPartition> resumed = new ArrayList<>();
+        List<TopicPartition> repaused = new ArrayList<>();
+        Iterator<Map.Entry<TopicPartition, Set<Long>>> iterator = pausedPartitions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<TopicPartition, Set<Long>> entry = iterator.next();
+            TopicPartition partition = entry.getKey();
+            entry.getValue().removeIf(voucherLanes::canResume);
+            if (!assignment.contains(partition)) {
+                // 再均衡后分区已经不属于本消费者
+                iterator.remove();
+            } else if (entry.getValue().isEmpty()) {
+                iterator.remove();
+                // 整体暂停中不单独恢复，整体恢复时一并恢复
+                if (!paused && consumerPaused.contains(partition)) {
+                    resumed.add(partition);
+                }
+            } else if (!consumerPaused.contains(partition)) {
+                repaused.add(partition);
+            }
+        }
+        if (!resumed.isEmpty()) {
+            consumer.resume(resumed);
+        }
+        if (!repaused.isEmpty()) {
+            consumer.pause(repaused);
+            partitionPauseCount.addAndGet(repaused.size());
+            log.warn("分区{}被恢复但券的lane仍然排满，重新暂停", repaused);
+        }
+    }
+
+    /**
+     * 所有分区都暂停时不会再有消息触发监听方法，由容器空闲事件（在消费者线程上发布）来对齐分区状态
+     */
+    @EventListener(condition = "event.listenerId.startsWith('" + LISTENER_ID + "')")
+    public void onIdle(ListenerContainerIdleEvent event) {
+        if (voucherLanes != null) {
+            syncPartitions(event.getConsumer());
+        }
+    }
+
+    /**
+     * 分区被收回，容器提交位点之前：有限时间内等待这些分区已派发的订单处理完
+     */
+    @Override
+    public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        List<Integer> revoked = orderPartitions(partitions);
+        if (!revoked.isEmpty() && !ackTracker.awaitCompletion(revoked, revokeWait)) {
+            log.warn("分区{}被收回，{}毫秒内仍有订单未处理完，这些订单将由新的消费者重新消费", revoked, revokeWait);
+        }
+    }
+
+    /**
+     * 位点已提交：丢弃这些分区的跟踪状态和暂停记录，之后完成的订单不再确认
+     */
+    @Override
+    public void onPartitionsRevokedAfterCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        revoke(partitions);
+    }
+
+    /**
+     * 分区已丢失，位点无法再提交，直接丢弃跟踪状态
+     */
+    @Override
+    public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        revoke(partitions);
+    }
+
+    private void revoke(Collection<TopicPartition> partitions) {
+        List<Integer> revoked = orderPartitions(partitions);
+        if (revoked.isEmpty()) {
+            return;
+        }
+        int dropped = ackTracker.revoke(revoked);
+        partitions.forEach(pausedPartitions::remove);
+        if (dropped > 0) {
+            log.warn("分区{}被收回，丢弃{}条未确认的订单", revoked, dropped);
+        }
+    }
+
+    private static List<Integer> orderPartitions(Collection<TopicPartition> partitions) {
+        return partitions.stream()
+                .filter(partition -> TOPIC_CREATE_ORDER.equals(partition.topic()))
+                .map(TopicPartition::partition)
+                .collect(Collectors.toList());
+    }
+
+    private static Map<Long, Integer> parseWeights(String weights) {
+        Map<Long, Integer> map = new HashMap<>();
+        for (String item : StrUtil.split(weights, ',', true, true)) {
+            String[] pair = item.split(":");
+            map.put(Long.valueOf(pair[0].trim()), Integer.valueOf(pair[1].trim()));
+        }
+        return map;
+    }
+
+    private void onTaskDone() {
+        if (inFlight.decrementAndGet() <= maxInFlight * resumePercent / 100 && paused) {
+            resume();
+        }
+    }
+
+    private synchronized void pause() {
+        if (paused) {
+            return;
+        }
+        MessageListenerContainer container = kafkaListenerEndpointRegistry.getListenerContainer(LISTENER_ID);
+        if (container != null) {
+            container.pause();
+            paused = true;
+            pauseCount.incrementAndGet();
+            log.warn("待处理订单达到{}，暂停消费", inFlight.get());
+            // 判断和暂停之间订单可能已经全部处理完，不会再有完成回调来恢复
+            if (inFlight.get() <= maxInFlight * resumePercent / 100) {
+                resume();
+            }
+        }
+    }
+
+    private synchronized void resume() {
+        if (!paused) {
+            return;
+        }
+        MessageListenerContainer container = kafkaListenerEndpointRegistry.getListenerContainer(LISTENER_ID);
+        if (container != null) {
+            container.resume();
+        }
+        paused = false;
+    }
+
+    /**
+     * @return 队列深度、已派发未完成数、未提交位点数、是否暂停、累计暂停次数
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queued", affinityExecutor != null ? affinityExecutor.queuedCount()
+                : voucherLanes != null ? voucherLanes.queuedCount() : executorService.getQueue().size());
+        stats.put("inFlight", inFlight.get());
+        stats.put("pendingAcks", ackTracker.pendingCount());
+        stats.put("paused", paused);
+        stats.put("pauseCount", pauseCount.get());
+        if (voucherLanes != null) {
+            stats.put("pausedPartitions", pausedPartitions.keySet().stream().map(String::valueOf).collect(Collectors.toList()));
+            stats.put("partitionPauseCount", partitionPauseCount.get());
+            stats.put("lanes", voucherLanes.stats());
+        }
+        return stats;
     }
 
     @PreDestroy
     public void shutdown() {
+        if (affinityExecutor != null) {
+            affinityExecutor.shutdown(60, TimeUnit.SECONDS);
+            return;
+        }
+        if (voucherLanes != null) {
+            voucherLanes.shutdown(60, TimeUnit.SECONDS);
+            return;
+        }
         executorService.shutdown();
         try {
             if (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
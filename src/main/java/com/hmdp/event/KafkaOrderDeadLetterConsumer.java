@@ -0,0 +1,39 @@
+package com.hmdp.event;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.SeckillOrderCompensator;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+import static com.hmdp.utils.KafkaConstants.HEADER_FAILURE_REASON;
+import static com.hmdp.utils.KafkaConstants.TOPIC_SAVE_ORDER_FAILED;
+
+/**
+ * 消费死信主题：补偿最终失败的订单。死信消息保留失败原因，补偿按订单id幂等，重复投递不会多还库存
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.order.queue", havingValue = "kafka", matchIfMissing = true)
+public class KafkaOrderDeadLetterConsumer {
+    @Resource
+    private SeckillOrderCompensator seckillOrderCompensator;
+
+    @KafkaListener(id = "voucherOrderDeadLetter", topics = TOPIC_SAVE_ORDER_FAILED)
+    public void handle(ConsumerRecord<String, byte[]> record, Acknowledgment ack) {
+        VoucherOrder voucherOrder = record.value() == null ? null : OrderEventCodec.decode(record.value());
+        if (voucherOrder == null) {
+            log.error("消息格式错误!");
+            ack.acknowledge();
+            return;
+        }
+        // 补偿失败抛出异常，不提交位点，由容器重新投递
+        seckillOrderCompensator.compensate(voucherOrder, KafkaOrderRetryConsumer.header(record, HEADER_FAILURE_REASON));
+        ack.acknowledge();
+    }
+}
@@ -1,19 +1,217 @@
 package com.hmdp.event;
 
-import com.alibaba.fastjson.JSONObject;
-import com.hmdp.entity.Event;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER;
+
+/**
+ * 异步发送下单事件
+ * <p>
+ * 批量、linger、压缩由 spring.kafka.producer 配置；max.block.ms 很小，生产者缓冲区打满时send立即失败，
+ * 消息转入本地缓冲，由后台线程补发，不阻塞Tomcat线程。发送失败通过回调转入本地缓冲。
+ * 本地缓冲已满时消息不再接收，返回的future异常完成，由调用方归还库存。
+ * <p>
+ * 本地缓冲在堆内，进程宕机时缓冲中的全部消息都会丢失，这些订单既不会落库也不会补偿，只能靠库存对账发现。
+ */
+@Slf4j
 @Component
 public class KafkaOrderProducer {
     @Resource
-    private KafkaTemplate kafkaTemplate;
+    private KafkaTemplate<String, byte[]> kafkaTemplate;
+
+    @Value("${hmdp.order.producer.buffer-capacity:100000}")
+    private int bufferCapacity;
+    @Value("${hmdp.order.producer.drain-batch:500}")
+    private int drainBatch;
+
+    private final LinkedBlockingDeque<ProducerRecord<String, byte[]>> buffer = new LinkedBlockingDeque<>();
+    /**
+     * 缓冲中和补发中的消息数，不超过buffer-capacity；补发失败放回缓冲时不再占用新的名额，已接收的消息不会因缓冲满被丢弃
+     */
+    private final AtomicInteger held = new AtomicInteger();
+    private final ExecutorService drainer = Executors.newSingleThreadExecutor();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        drainer.submit(this::drain);
+    }
+
+    /**
+     * @return broker确认或转入本地缓冲后完成；本地缓冲已满、消息没有被接收时异常完成
+     */
+    public CompletableFuture<Void> publishOrder(VoucherOrder voucherOrder) {
+        // 以 voucherId:userId 为key，由VoucherPartitioner把同一张券固定到少数几个分区，同一用户同一张券落在同一分区
+        return send(new ProducerRecord<>(TOPIC_CREATE_ORDER,
+                VoucherPartitioner.key(voucherOrder.getVoucherId(), voucherOrder.getUserId()),
+                OrderEventCodec.encode(voucherOrder)));
+    }
+
+    /**
+     * 把订单投递到重试主题或死信主题，重试次数、到期时间、失败原因放在消息头
+     * <p>
+     * 不经本地缓冲：调用方要在投递成功后才确认源消息，缓冲中的消息进程宕机即丢失，不能当作已投递
+     * @return broker确认后完成；发送失败（含生产者缓冲区已满）时异常完成
+     */
+    public CompletableFuture<Void> publishOrder(String topic, VoucherOrder voucherOrder, Map<String, String> headers) {
+        ProducerRecord<String, byte[]> record = new ProducerRecord<>(topic,
+                VoucherPartitioner.key(voucherOrder.getVoucherId(), voucherOrder.getUserId()),
+                OrderEventCodec.encode(voucherOrder));
+        headers.forEach((key, value) -> record.headers().add(key, value.getBytes(StandardCharsets.UTF_8)));
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            kafkaTemplate.send(record).addCallback(
+                    result -> future.complete(null),
+                    ex -> {
+                        sendFailures.incrementAndGet();
+                        future.completeExceptionally(ex);
+                    });
+        } catch (Exception e) {
+            sendFailures.incrementAndGet();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private CompletableFuture<Void> send(ProducerRecord<String, byte[]> record) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        // 本地缓冲还有积压时直接排到后面，保持顺序，也避免反复撞满生产者缓冲区
+        if (!buffer.isEmpty()) {
+            bufferLocally(record, future);
+            return future;
+        }
+        try {
+            kafkaTemplate.send(record).addCallback(
+                    result -> future.complete(null),
+                    ex -> {
+                        sendFailures.incrementAndGet();
+                        log.error("发送下单事件失败，转入本地缓冲补发", ex);
+                        bufferLocally(record, future);
+                    });
+        } catch (Exception e) {
+            // 生产者缓冲区已满，等待超过max.block.ms
+            bufferLocally(record, future);
+        }
+        return future;
+    }
+
+    /**
+     * 转入本地缓冲后完成future；缓冲已满时丢弃消息，future异常完成
+     */
+    private void bufferLocally(ProducerRecord<String, byte[]> record, CompletableFuture<Void> future) {
+        if (held.incrementAndGet() > bufferCapacity) {
+            held.decrementAndGet();
+            dropped.incrementAndGet();
+            log.error("本地缓冲已满，下单事件未被接收，key：{}", record.key());
+            future.completeExceptionally(new IllegalStateException("下单事件本地缓冲已满"));
+            return;
+        }
+        buffer.offerLast(record);
+        future.complete(null);
+    }
+
+    /**
+     * 后台补发本地缓冲中的消息，失败的放回队头稍后重试
+     */
+    private void drain() {
+        List<ProducerRecord<String, byte[]>> records = new ArrayList<>(drainBatch);
+        while (running) {
+            try {
+                ProducerRecord<String, byte[]> first = buffer.pollFirst(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                records.add(first);
+                buffer.drainTo(records, drainBatch - 1);
+                List<ListenableFuture<?>> futures = new ArrayList<>(records.size());
+                for (ProducerRecord<String, byte[]> record : records) {
+                    futures.add(kafkaTemplate.send(record));
+                }
+                for (int i = futures.size() - 1; i >= 0; i--) {
+                    try {
+                        futures.get(i).get(30, TimeUnit.SECONDS);
+                        held.decrementAndGet();
+                    } catch (Exception e) {
+                        sendFailures.incrementAndGet();
+                        requeue(records.get(i));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // send本身抛出异常，整批放回队头
+                log.error("补发下单事件失败，稍后重试", e);
+                for (int i = records.size() - 1; i >= 0; i--) {
+                    requeue(records.get(i));
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } finally {
+                records.clear();
+            }
+        }
+    }
+
+    /**
+     * 放回队头，名额在补发成功前一直占用，缓冲无界，一定放得回去
+     */
+    private void requeue(ProducerRecord<String, byte[]> record) {
+        buffer.offerFirst(record);
+    }
+
+    public int bufferedCount() {
+        return buffer.size();
+    }
+
+    public long sendFailureCount() {
+        return sendFailures.get();
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
 
-    public void publishEvent(Event event){
-        //将是事件发送到指定的主题
-        kafkaTemplate.send(event.getTopic(), JSONObject.toJSONString(event));
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        drainer.shutdownNow();
+        // 尽力发出缓冲中剩余的消息
+        ProducerRecord<String, byte[]> record;
+        while ((record = buffer.pollFirst()) != null) {
+            try {
+                kafkaTemplate.send(record);
+            } catch (Exception e) {
+                log.error("关闭时下单事件发送失败，key：{}", record.key());
+            }
+        }
+        kafkaTemplate.flush();
     }
 }
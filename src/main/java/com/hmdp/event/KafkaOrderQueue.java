@@ -0,0 +1,99 @@
+package com.hmdp.event;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.SeckillOrderCompensator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static com.hmdp.utils.KafkaConstants.HEADER_ATTEMPT;
+import static com.hmdp.utils.KafkaConstants.HEADER_DUE_AT;
+import static com.hmdp.utils.KafkaConstants.HEADER_FAILURE_REASON;
+import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER_RETRIES;
+import static com.hmdp.utils.KafkaConstants.TOPIC_SAVE_ORDER_FAILED;
+
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.order.queue", havingValue = "kafka", matchIfMissing = true)
+public class KafkaOrderQueue implements OrderQueue {
+    @Resource
+    private KafkaOrderProducer kafkaOrderProducer;
+    @Resource
+    private SeckillOrderCompensator seckillOrderCompensator;
+
+    /**
+     * 各级重试的延迟，毫秒，最多对应三个重试主题
+     */
+    @Value("${hmdp.order.retry.delays:1000,10000,60000}")
+    private long[] retryDelays;
+
+    /**
+     * 不等broker确认；本地缓冲已满、消息没有被接收时抛出异常，由调用方归还库存
+     */
+    @Override
+    public void publish(VoucherOrder voucherOrder) {
+        CompletableFuture<Void> future = kafkaOrderProducer.publishOrder(voucherOrder);
+        if (future.isCompletedExceptionally()) {
+            future.join();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAsync(VoucherOrder voucherOrder) {
+        return kafkaOrderProducer.publishOrder(voucherOrder);
+    }
+
+    /**
+     * 第n次失败投递到第n级重试主题，到期后由 {@link KafkaOrderRetryConsumer} 重新落库，重试用完进入死信主题
+     * <p>
+     * 投递到重试主题失败时不再等待，直接按最终失败处理
+     */
+    @Override
+    public CompletableFuture<Void> retry(VoucherOrder voucherOrder, int attempt, String reason) {
+        int tiers = Math.min(retryDelays.length, TOPIC_CREATE_ORDER_RETRIES.length);
+        if (attempt > tiers) {
+            return fail(voucherOrder, reason);
+        }
+        Map<String, String> headers = new HashMap<>();
+        headers.put(HEADER_ATTEMPT, String.valueOf(attempt));
+        headers.put(HEADER_DUE_AT, String.valueOf(System.currentTimeMillis() + retryDelays[attempt - 1]));
+        headers.put(HEADER_FAILURE_REASON, reason);
+        log.warn("订单{}第{}次落库失败，{}毫秒后重试，原因：{}", voucherOrder.getId(), attempt, retryDelays[attempt - 1], reason);
+        return kafkaOrderProducer.publishOrder(TOPIC_CREATE_ORDER_RETRIES[attempt - 1], voucherOrder, headers)
+                .handle((result, ex) -> ex)
+                .thenCompose(ex -> {
+                    if (ex == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    log.error("订单{}投递到重试主题失败，按最终失败处理", voucherOrder.getId(), ex);
+                    return fail(voucherOrder, reason);
+                });
+    }
+
+    /**
+     * 投递到死信主题，由 {@link KafkaOrderDeadLetterConsumer} 补偿
+     * <p>
+     * 投递到死信主题失败时直接补偿；补偿在公共线程池上执行，不占用生产者的IO线程，补偿也失败时future异常完成
+     */
+    @Override
+    public CompletableFuture<Void> fail(VoucherOrder voucherOrder, String reason) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(HEADER_FAILURE_REASON, reason);
+        log.error("订单{}最终失败，进入死信主题，原因：{}", voucherOrder.getId(), reason);
+        return kafkaOrderProducer.publishOrder(TOPIC_SAVE_ORDER_FAILED, voucherOrder, headers)
+                .handle((result, ex) -> ex)
+                .thenCompose(ex -> {
+                    if (ex == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    log.error("订单{}投递到死信主题失败，直接补偿", voucherOrder.getId(), ex);
+                    return CompletableFuture.runAsync(() -> seckillOrderCompensator.compensate(voucherOrder, reason));
+                });
+    }
+}
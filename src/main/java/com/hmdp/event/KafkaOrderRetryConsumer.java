@@ -0,0 +1,95 @@
+package com.hmdp.event;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+import static com.hmdp.utils.KafkaConstants.HEADER_ATTEMPT;
+import static com.hmdp.utils.KafkaConstants.HEADER_DUE_AT;
+import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER_RETRY_1;
+import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER_RETRY_2;
+import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER_RETRY_3;
+
+/**
+ * 消费重试主题，每一级一个监听容器
+ * <p>
+ * 同一级的消息延迟相同，分区内按到期时间有序：队头未到期时 nack 让本容器休眠到到期时刻再重新拉取，
+ * 只停住这一级重试，主消费者和其他级别不受影响。重试仍失败投递到下一级，重试用完进入死信主题，broker确认后才提交本条位点。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.order.queue", havingValue = "kafka", matchIfMissing = true)
+public class KafkaOrderRetryConsumer {
+    /**
+     * 转入下一级失败时重新处理本条消息前的等待时间，毫秒
+     */
+    private static final long REDELIVER_DELAY = 5000;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private OrderQueue orderQueue;
+
+    @KafkaListener(id = "voucherOrderRetry1", topics = TOPIC_CREATE_ORDER_RETRY_1)
+    public void retry1(ConsumerRecord<String, byte[]> record, Acknowledgment ack) {
+        handle(record, ack);
+    }
+
+    @KafkaListener(id = "voucherOrderRetry2", topics = TOPIC_CREATE_ORDER_RETRY_2)
+    public void retry2(ConsumerRecord<String, byte[]> record, Acknowledgment ack) {
+        handle(record, ack);
+    }
+
+    @KafkaListener(id = "voucherOrderRetry3", topics = TOPIC_CREATE_ORDER_RETRY_3)
+    public void retry3(ConsumerRecord<String, byte[]> record, Acknowledgment ack) {
+        handle(record, ack);
+    }
+
+    private void handle(ConsumerRecord<String, byte[]> record, Acknowledgment ack) {
+        VoucherOrder voucherOrder = record.value() == null ? null : OrderEventCodec.decode(record.value());
+        if (voucherOrder == null) {
+            log.error("消息格式错误!");
+            ack.acknowledge();
+            return;
+        }
+        // 1.未到期，休眠到到期时刻后重新投递本条消息
+        long wait = headerLong(record, HEADER_DUE_AT, 0) - System.currentTimeMillis();
+        if (wait > 0) {
+            ack.nack(wait);
+            return;
+        }
+        // 2.重新落库，失败投递到下一级；投递和补偿都失败时不确认，稍后重新处理本条消息
+        int attempt = (int) headerLong(record, HEADER_ATTEMPT, 1);
+        try {
+            voucherOrderService.handleVoucherOrder(voucherOrder);
+        } catch (Exception e) {
+            try {
+                orderQueue.retry(voucherOrder, attempt + 1, e.toString()).join();
+            } catch (Exception ex) {
+                log.error("订单{}未能转入下一级重试，{}毫秒后重新处理", voucherOrder.getId(), REDELIVER_DELAY, ex);
+                ack.nack(REDELIVER_DELAY);
+                return;
+            }
+        }
+        ack.acknowledge();
+    }
+
+    static String header(ConsumerRecord<?, ?> record, String key) {
+        Header header = record.headers().lastHeader(key);
+        return header == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    private static long headerLong(ConsumerRecord<?, ?> record, String key, long defaultValue) {
+        String value = header(record, key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+}
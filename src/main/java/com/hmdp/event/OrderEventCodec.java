@@ -0,0 +1,80 @@
+package com.hmdp.event;
+
+import com.alibaba.fastjson.JSONObject;
+import com.hmdp.entity.Event;
+import com.hmdp.entity.VoucherOrder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 下单事件的二进制编码，主题由发送目标决定，不再写进消息体
+ * <p>
+ * v2：[1字节版本号][8字节订单id][8字节用户id][8字节优惠券id][4字节购买数量]，共29字节。
+ * v1没有购买数量，按1件解码；以 '{' 开头的消息是升级前生产的JSON格式 {@link Event}，仍然可以解码。
+ * 滚动升级时先升级消费者，再升级生产者。
+ */
+public final class OrderEventCodec {
+    public static final byte VERSION_1 = 1;
+    public static final byte VERSION_2 = 2;
+    private static final int VERSION_1_LENGTH = 1 + Long.BYTES * 3;
+    private static final int VERSION_2_LENGTH = VERSION_1_LENGTH + Integer.BYTES;
+
+    private OrderEventCodec() {
+    }
+
+    public static byte[] encode(VoucherOrder voucherOrder) {
+        Integer quantity = voucherOrder.getQuantity();
+        return ByteBuffer.allocate(VERSION_2_LENGTH)
+                .put(VERSION_2)
+                .putLong(voucherOrder.getId())
+                .putLong(voucherOrder.getUserId())
+                .putLong(voucherOrder.getVoucherId())
+                .putInt(quantity == null ? 1 : quantity)
+                .array();
+    }
+
+    /**
+     * @return 订单，无法识别的消息返回null
+     */
+    public static VoucherOrder decode(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (bytes[0] == '{') {
+            return decodeJson(bytes);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte version = buffer.get();
+        if (version == VERSION_2 && bytes.length >= VERSION_2_LENGTH) {
+            return new VoucherOrder()
+                    .setId(buffer.getLong())
+                    .setUserId(buffer.getLong())
+                    .setVoucherId(buffer.getLong())
+                    .setQuantity(buffer.getInt());
+        }
+        if (version == VERSION_1 && bytes.length >= VERSION_1_LENGTH) {
+            return new VoucherOrder()
+                    .setId(buffer.getLong())
+                    .setUserId(buffer.getLong())
+                    .setVoucherId(buffer.getLong())
+                    .setQuantity(1);
+        }
+        return null;
+    }
+
+    private static VoucherOrder decodeJson(byte[] bytes) {
+        Event event = JSONObject.parseObject(new String(bytes, StandardCharsets.UTF_8), Event.class);
+        if (event == null || event.getData() == null) {
+            return null;
+        }
+        Map<String, Object> data = event.getData();
+        Object quantity = data.get("quantity");
+        return new VoucherOrder()
+                .setId(event.getEntityId())
+                .setUserId(event.getUserId())
+                .setVoucherId(Long.valueOf(data.get("voucherId").toString()))
+                .setQuantity(quantity == null ? 1 : Integer.valueOf(quantity.toString()));
+    }
+}
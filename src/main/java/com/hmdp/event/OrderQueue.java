@@ -0,0 +1,53 @@
+package com.hmdp.event;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 秒杀订单队列，秒杀资格校验通过后由它把订单交给异步消费者落库
+ * <p>
+ * 通过 hmdp.order.queue 选择实现：kafka（默认）、redis-stream
+ */
+public interface OrderQueue {
+
+    /**
+     * 投递订单
+     * @param voucherOrder 已分配订单id的订单
+     */
+    void publish(VoucherOrder voucherOrder);
+
+    /**
+     * 异步投递订单，默认同步投递后立即完成
+     * @param voucherOrder 已分配订单id的订单
+     * @return 订单被队列接收（或转入本地补发缓冲）后完成
+     */
+    default CompletableFuture<Void> publishAsync(VoucherOrder voucherOrder) {
+        publish(voucherOrder);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * 订单落库失败，交给队列稍后重试，不阻塞当前消费线程；默认不重试，直接按最终失败处理
+     * @param attempt 已经失败的次数
+     * @param reason 本次失败原因
+     * @return 订单已可靠地交给重试（或已补偿）后完成，调用方此时才能确认源消息；异常完成时不能确认
+     */
+    default CompletableFuture<Void> retry(VoucherOrder voucherOrder, int attempt, String reason) {
+        return fail(voucherOrder, reason);
+    }
+
+    /**
+     * 订单最终失败：保留失败原因，归还Redis库存和用户已购数量，记录失败状态
+     * @return 失败订单已可靠地交给补偿（或已补偿）后完成；异常完成时不能确认源消息
+     */
+    CompletableFuture<Void> fail(VoucherOrder voucherOrder, String reason);
+
+    /**
+     * seckill.lua 内入队使用的Stream key，扣库存和入队在一次脚本调用中原子完成
+     * @return Stream key，返回null表示脚本执行成功后再调用 {@link #publish(VoucherOrder)} 入队
+     */
+    default String scriptStreamKey() {
+        return null;
+    }
+}
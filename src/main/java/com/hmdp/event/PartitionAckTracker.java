@@ -0,0 +1,131 @@
+package com.hmdp.event;
+
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按分区跟踪已派发、未完成的消息，只提交连续完成的最大位点
+ * <p>
+ * 消息由线程池并发处理，完成顺序和位点顺序不一致。提交某条消息的位点等于确认它之前的所有消息，
+ * 所以只有一个分区最小的未完成位点之前的消息才能确认，进程崩溃时未完成的消息会被重新消费。
+ * 再均衡收回分区时丢弃该分区的跟踪状态，之后才完成的消息不再确认，由新的消费者从已提交位点重新消费。
+ */
+public class PartitionAckTracker {
+    private final ConcurrentHashMap<Integer, Partition> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * 一次分配期间的分区状态，收回后再分配回来使用新的实例
+     */
+    private static final class Partition {
+        private final TreeMap<Long, Pending> offsets = new TreeMap<>();
+        private boolean revoked;
+    }
+
+    public static final class Pending {
+        private final Partition partition;
+        private final Acknowledgment ack;
+        private boolean done;
+
+        private Pending(Partition partition, Acknowledgment ack) {
+            this.partition = partition;
+            this.ack = ack;
+        }
+    }
+
+    /**
+     * 在监听线程上按位点顺序登记
+     */
+    public Pending track(int partition, long offset, Acknowledgment ack) {
+        Partition state = partitions.computeIfAbsent(partition, p -> new Partition());
+        Pending pending = new Pending(state, ack);
+        synchronized (state) {
+            state.offsets.put(offset, pending);
+        }
+        return pending;
+    }
+
+    /**
+     * 标记完成，并确认该分区连续完成的最大位点；分区已被收回时不确认
+     */
+    public void complete(Pending pending) {
+        Partition state = pending.partition;
+        synchronized (state) {
+            if (state.revoked) {
+                return;
+            }
+            pending.done = true;
+            Acknowledgment last = null;
+            while (!state.offsets.isEmpty() && state.offsets.firstEntry().getValue().done) {
+                last = state.offsets.pollFirstEntry().getValue().ack;
+            }
+            // 在锁内确认，保证同一分区的确认按位点递增的顺序进入容器
+            if (last != null) {
+                last.acknowledge();
+            }
+        }
+    }
+
+    /**
+     * 在监听线程上等待这些分区已派发的消息全部确认
+     * @return 超时前全部确认返回true
+     */
+    public boolean awaitCompletion(Collection<Integer> revoked, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pendingCount(revoked) > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 丢弃这些分区的跟踪状态，在监听线程上调用
+     * @return 丢弃的未确认消息数
+     */
+    public int revoke(Collection<Integer> revoked) {
+        int dropped = 0;
+        for (Integer partition : revoked) {
+            Partition state = partitions.remove(partition);
+            if (state == null) {
+                continue;
+            }
+            synchronized (state) {
+                state.revoked = true;
+                dropped += state.offsets.size();
+                state.offsets.clear();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return 已派发、位点尚未提交的消息数
+     */
+    public int pendingCount() {
+        return pendingCount(partitions.keySet());
+    }
+
+    private int pendingCount(Collection<Integer> keys) {
+        int count = 0;
+        for (Integer partition : keys) {
+            Partition state = partitions.get(partition);
+            if (state == null) {
+                continue;
+            }
+            synchronized (state) {
+                count += state.offsets.size();
+            }
+        }
+        return count;
+    }
+}
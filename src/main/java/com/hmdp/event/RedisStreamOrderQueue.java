@@ -0,0 +1,336 @@
+package com.hmdp.event;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillOrderCompensator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_GROUP;
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_KEY;
+
+/**
+ * 基于Redis Stream的订单队列，适用于没有Kafka的部署
+ * <p>
+ * 入队在 seckill.lua 内用 XADD 完成；消费者用 XREADGROUP COUNT n 批量拉取，整批落库后一次 XACK 整批消息，
+ * 异常时重新处理本消费者的pending-list，并定期认领其他消费者（宕机节点）长时间未确认的消息。
+ * 逐条落库仍失败的订单不确认，留在pending-list中按retry-interval重新投递，投递次数达到max-deliveries后才补偿。
+ * <p>
+ * 确认后的消息仍留在Stream中，按trim-interval用 XTRIM MINID 删除消费者组最早未确认消息之前的部分，
+ * 只删已经投递并确认的消息，积压和pending中的消息不会被删。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.order.queue", havingValue = "redis-stream")
+public class RedisStreamOrderQueue implements OrderQueue {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillOrderCompensator seckillOrderCompensator;
+
+    @Value("${hmdp.order.stream.batch-size:100}")
+    private int batchSize;
+    @Value("${hmdp.order.stream.block:2000}")
+    private long blockMillis;
+    @Value("${hmdp.order.stream.claim-idle:60000}")
+    private long claimIdleMillis;
+    @Value("${hmdp.order.stream.retry-interval:10000}")
+    private long retryIntervalMillis;
+    @Value("${hmdp.order.stream.max-deliveries:5}")
+    private long maxDeliveries;
+    @Value("${hmdp.order.stream.trim-interval:60000}")
+    private long trimIntervalMillis;
+
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("order_stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    private final String consumerName = "c-" + UUID.randomUUID().toString(true);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private volatile boolean running = true;
+    /**
+     * 本批中落库失败、等待重新投递的订单：订单id -> 失败原因，只在消费线程上访问
+     */
+    private final Map<Long, String> retained = new HashMap<>();
+
+    @PostConstruct
+    private void init() {
+        try {
+            // XGROUP CREATE stream.orders g1 0 MKSTREAM
+            stringRedisTemplate.opsForStream().createGroup(ORDER_STREAM_KEY, ReadOffset.from("0"), ORDER_STREAM_GROUP);
+        } catch (RedisSystemException e) {
+            // 消费者组已存在
+            log.debug("消费者组已存在：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 应用启动完成后再开始消费，避免消费线程用到尚未初始化完的订单服务
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        executor.submit(this::consume);
+    }
+
+    @Override
+    public String scriptStreamKey() {
+        return ORDER_STREAM_KEY;
+    }
+
+    @Override
+    public void publish(VoucherOrder voucherOrder) {
+        // 分片库存的券无法在脚本内入队，这里补一次 XADD
+        Map<String, String> value = new HashMap<>();
+        value.put("userId", voucherOrder.getUserId().toString());
+        value.put("voucherId", voucherOrder.getVoucherId().toString());
+        value.put("id", voucherOrder.getId().toString());
+        value.put("quantity", String.valueOf(voucherOrder.getQuantity()));
+        stringRedisTemplate.opsForStream().add(ORDER_STREAM_KEY, value);
+    }
+
+    /**
+     * 不确认消息，留在pending-list中等待重新投递；只会在消费线程处理本批订单时被调用
+     */
+    @Override
+    public CompletableFuture<Void> retry(VoucherOrder voucherOrder, int attempt, String reason) {
+        retained.put(voucherOrder.getId(), reason);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * 同步补偿，补偿失败直接抛出
+     */
+    @Override
+    public CompletableFuture<Void> fail(VoucherOrder voucherOrder, String reason) {
+        seckillOrderCompensator.compensate(voucherOrder, reason);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void consume() {
+        // 启动时先处理上次遗留在pending-list中的消息
+        handlePendingList();
+        long lastClaim = System.currentTimeMillis();
+        long lastRetry = lastClaim;
+        long lastTrim = lastClaim;
+        while (running) {
+            try {
+                // 1.定期认领宕机消费者长时间未确认的消息，定期重新投递本消费者落库失败的消息，定期删除已确认的消息
+                long now = System.currentTimeMillis();
+                boolean claimed = false;
+                if (now - lastClaim > claimIdleMillis) {
+                    lastClaim = now;
+                    claimed = claimIdleMessages();
+                }
+                if (claimed || now - lastRetry > retryIntervalMillis) {
+                    lastRetry = now;
+                    handlePendingList();
+                }
+                if (now - lastTrim > trimIntervalMillis) {
+                    lastTrim = now;
+                    trim();
+                }
+                // 2.批量获取消息 XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(ORDER_STREAM_GROUP, consumerName),
+                        StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMillis)),
+                        StreamOffset.create(ORDER_STREAM_KEY, ReadOffset.lastConsumed())
+                );
+                if (list == null || list.isEmpty()) {
+                    continue;
+                }
+                // 3.整批落库并确认
+                handle(list);
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.error("处理订单异常", e);
+                handlePendingList();
+            }
+        }
+    }
+
+    /**
+     * 从头到尾处理一遍本消费者的pending-list，仍然失败的消息留到下一轮
+     */
+    private void handlePendingList() {
+        String cursor = "0";
+        while (running) {
+            try {
+                // XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders cursor，每次读取都会增加消息的投递次数
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(ORDER_STREAM_GROUP, consumerName),
+                        StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(ORDER_STREAM_KEY, ReadOffset.from(cursor))
+                );
+                if (list == null || list.isEmpty()) {
+                    // pending-list中没有更多消息，结束循环
+                    break;
+                }
+                cursor = list.get(list.size() - 1).getId().getValue();
+                handle(list);
+            } catch (Exception e) {
+                log.error("处理pending-list订单异常", e);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void handle(List<MapRecord<String, Object, Object>> list) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+        RecordId[] ids = new RecordId[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            MapRecord<String, Object, Object> record = list.get(i);
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            ids[i] = record.getId();
+        }
+        List<RecordId> persisted = new ArrayList<>(ids.length);
+        try {
+            voucherOrderService.handleVoucherOrderBatch(voucherOrders);
+            // 落库失败的订单不确认，投递次数用完的补偿后确认
+            for (int i = 0; i < ids.length; i++) {
+                VoucherOrder voucherOrder = voucherOrders.get(i);
+                String reason = retained.get(voucherOrder.getId());
+                if (reason == null || deliveriesExhausted(ids[i], voucherOrder, reason)) {
+                    persisted.add(ids[i]);
+                }
+            }
+        } finally {
+            retained.clear();
+        }
+        // 一条 XACK 确认整批已处理的消息
+        if (!persisted.isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(ORDER_STREAM_KEY, ORDER_STREAM_GROUP,
+                    persisted.toArray(new RecordId[0]));
+        }
+    }
+
+    /**
+     * 按XPENDING中的投递次数判断是否还要重新投递，次数用完时补偿
+     * @return 是否已补偿，可以确认
+     */
+    private boolean deliveriesExhausted(RecordId id, VoucherOrder voucherOrder, String reason) {
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(ORDER_STREAM_KEY, ORDER_STREAM_GROUP,
+                Range.closed(id.getValue(), id.getValue()), 1);
+        long deliveries = pending.isEmpty() ? maxDeliveries : pending.get(0).getTotalDeliveryCount();
+        if (deliveries < maxDeliveries) {
+            log.warn("订单{}第{}次落库失败，等待重新投递，原因：{}", voucherOrder.getId(), deliveries, reason);
+            return false;
+        }
+        fail(voucherOrder, reason);
+        return true;
+    }
+
+    /**
+     * 把其他消费者空闲超过claim-idle的pending消息认领到自己名下
+     * @return 是否认领到消息
+     */
+    private boolean claimIdleMessages() {
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(ORDER_STREAM_KEY, ORDER_STREAM_GROUP, Range.unbounded(), batchSize);
+        Duration minIdle = Duration.ofMillis(claimIdleMillis);
+        List<RecordId> ids = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if (!consumerName.equals(message.getConsumerName())
+                    && message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                ids.add(message.getId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return false;
+        }
+        byte[] key = ORDER_STREAM_KEY.getBytes(StandardCharsets.UTF_8);
+        List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                connection.streamCommands().xClaimJustId(key, ORDER_STREAM_GROUP, consumerName,
+                        RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids)));
+        log.info("认领了{}条超时未确认的订单消息", claimed == null ? 0 : claimed.size());
+        return claimed != null && !claimed.isEmpty();
+    }
+
+    /**
+     * 删除消费者组最早未确认的消息之前的部分；没有未确认消息时删到最后投递的消息为止
+     */
+    private void trim() {
+        try {
+            String minId = null;
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(ORDER_STREAM_KEY, ORDER_STREAM_GROUP);
+            if (summary != null && summary.getTotalPendingMessages() > 0) {
+                minId = summary.minMessageId();
+            } else {
+                minId = stringRedisTemplate.opsForStream().groups(ORDER_STREAM_KEY).stream()
+                        .filter(group -> ORDER_STREAM_GROUP.equals(group.groupName()))
+                        .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                        .findFirst().orElse(null);
+            }
+            if (minId == null || "0-0".equals(minId)) {
+                return;
+            }
+            Long trimmed = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(ORDER_STREAM_KEY), minId);
+            log.debug("删除订单Stream中已确认的消息{}条", trimmed);
+        } catch (Exception e) {
+            log.error("删除订单Stream中已确认的消息失败", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(blockMillis + 5000, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.hmdp.event;
+
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.utils.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 下单事件分区器：消息key为 voucherId:userId
+ * <p>
+ * 一张券固定落在从券id哈希位置开始的 partitions.per.voucher 个连续分区上，再按userId在其中选一个分区。
+ * 同一用户同一张券的事件总在同一分区；一场热门秒杀只占少数几个分区，暂停这些分区不影响其余分区上的券。
+ * key不是这个格式时按Kafka默认的murmur2哈希分区。
+ */
+public class VoucherPartitioner implements Partitioner {
+    public static final String PARTITIONS_PER_VOUCHER_CONFIG = "partitions.per.voucher";
+
+    private int partitionsPerVoucher = 2;
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        Object value = configs.get(PARTITIONS_PER_VOUCHER_CONFIG);
+        if (value != null) {
+            partitionsPerVoucher = Math.max(1, Integer.parseInt(value.toString()));
+        }
+    }
+
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+        int partitions = cluster.partitionsForTopic(topic).size();
+        if (keyBytes == null) {
+            return 0;
+        }
+        String k = key.toString();
+        int index = k.indexOf(':');
+        if (index < 0) {
+            return Utils.toPositive(Utils.murmur2(keyBytes)) % partitions;
+        }
+        int base = Utils.toPositive(Utils.murmur2(k.substring(0, index).getBytes(StandardCharsets.UTF_8))) % partitions;
+        int spread = Math.min(partitionsPerVoucher, partitions);
+        int offset = Utils.toPositive(Utils.murmur2(k.substring(index + 1).getBytes(StandardCharsets.UTF_8))) % spread;
+        return (base + offset) % partitions;
+    }
+
+    /**
+     * 下单事件的消息key
+     */
+    public static String key(Long voucherId, Long userId) {
+        return voucherId + ":" + userId;
+    }
+
+    @Override
+    public void close() {
+    }
+}
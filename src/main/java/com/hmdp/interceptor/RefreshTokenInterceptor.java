@@ -6,14 +6,14 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
@@ -52,4 +52,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // 移除用户
         UserHolder.removeUser();
     }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 异步请求不会回调afterCompletion，请求线程归还前移除用户；异步结果分派时preHandle会重新设置
+        UserHolder.removeUser();
+    }
 }
@@ -0,0 +1,21 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * 秒杀券Redis与数据库对账
+ */
+public interface ISeckillReconcileService {
+
+    /**
+     * 后台开始对账一张券，同一张券同一时间只有一个对账任务
+     * @param voucherId 优惠券id
+     * @param repair 是否修复差异
+     */
+    Result reconcile(Long voucherId, boolean repair);
+
+    /**
+     * 查询最近一次对账结果
+     */
+    Result queryReport(Long voucherId);
+}
@@ -18,5 +18,10 @@ public interface IShopService extends IService<Shop> {
 
     Result update(Shop shop);
 
+    /**
+     * 新增店铺，并把店铺id加入布隆过滤器
+     */
+    Result saveShop(Shop shop);
+
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
 }
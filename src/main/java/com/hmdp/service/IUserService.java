@@ -3,9 +3,11 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * <p>
@@ -24,4 +26,9 @@ public interface IUserService extends IService<User> {
     Result sign();
 
     Result signCount();
+
+    /**
+     * 批量查询用户的公开信息，按ids的顺序返回，不存在的用户不出现在结果中
+     */
+    List<UserDTO> queryUserDTOs(List<Long> ids);
 }
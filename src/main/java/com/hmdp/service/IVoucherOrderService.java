@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -14,12 +17,54 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
-    Result seckillVoucher(Long voucherId);
+    /**
+     * 秒杀，一次请求购买多件，整体成功或整体失败
+     * @param voucherId 优惠券id
+     * @param quantity 购买数量，不能超过券的每人限购数量
+     * @return 秒杀结果
+     */
+    Result seckillVoucher(Long voucherId, int quantity);
+
+    /**
+     * 异步秒杀：脚本执行、订单id生成、投递订单都在Lettuce、Kafka的回调中完成，不占用请求线程
+     * @param voucherId 优惠券id
+     * @param quantity 购买数量
+     * @return 秒杀结果
+     */
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId, int quantity);
+
+    /**
+     * 进入秒杀等候室领取排队号，重复进入返回原号码
+     * @param voucherId 优惠券id
+     * @return 排队号、是否已放行、前面还有多少人、预计等待秒数
+     */
+    Result joinWaitingRoom(Long voucherId);
+
+    /**
+     * 查询排队位置，只读本地缓存的放行水位
+     * @param voucherId 优惠券id
+     * @param ticket 排队号
+     * @return 同joinWaitingRoom
+     */
+    Result queryWaitingRoom(Long voucherId, Long ticket);
 
 //    Result createVoucherOrder(Long voucherId);
 
     void createVoucherOrder(VoucherOrder voucherOrder);
 
+    /**
+     * 在一个事务内批量创建订单：批内去重、每张券聚合扣减一次库存、多行插入
+     * @param voucherOrders 一次拉取到的订单
+     * @return 实际创建的订单
+     */
+    List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 批量处理订单，整批失败时退化为逐条处理
+     * @param voucherOrders 一次拉取到的订单
+     */
+    void handleVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
 
     void handleVoucherOrder(VoucherOrder voucherOrder);
 }
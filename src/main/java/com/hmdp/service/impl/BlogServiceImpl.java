@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -9,12 +8,13 @@ import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -28,6 +28,7 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -47,6 +48,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
 
     @Override
     public Result queryHotBlog(Integer current) {
@@ -58,20 +63,26 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         List<Blog> records = page.getRecords();
         // 查询发布blog用户
         // 查询blog是否被当前点赞
-        records.forEach(blog -> {
-            // 查询发布blog用户
-            this.queryBlogUser(blog);
-            // 查询blog是否被当前点赞
-            this.isBlogLiked(blog);
-        });
+        this.queryBlogUsers(records);
+        // 查询blog是否被当前点赞
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    /**
+     * 批量查询发布blog的用户
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, user -> user));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 
     @Override
@@ -82,7 +93,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return Result.fail("笔记不存在！");
         }
         // 查询发布blog用户
-        queryBlogUser(blog);
+        queryBlogUsers(Collections.singletonList(blog));
         // 查询blog是否被当前点赞
         isBlogLiked(blog);
         return Result.ok(blog);
@@ -97,6 +108,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         Long userId = UserHolder.getUser().getId();
         String key = RedisConstants.BLOG_LIKED_KEY + blog.getId();
+        hotKeyDetector.record(key);
         // 2.判断当前登录用户是否已经点赞
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
         blog.setIsLike(score != null);
@@ -109,6 +121,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = UserHolder.getUser().getId();
         // 2.判断当前登录用户是否已经点赞
         String key = RedisConstants.BLOG_LIKED_KEY + id;
+        hotKeyDetector.record(key);
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString()); //查询集合中object的分数，object不存在返回null
         if (score == null) {
             //3.如果未点赞，可以点赞
@@ -117,6 +130,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //3.2 保存用户到Redis的set集合  zadd key value score
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheClient.evictLocal(key);
             }
         } else {
             //4.如果已点赞，取消点赞
@@ -125,6 +139,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //4.2 把用户从Redis的set集合移除
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.evictLocal(key);
             }
         }
         return Result.ok();
@@ -133,20 +148,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Override
     public Result queryBlogLikes(Long id) {
         String key = RedisConstants.BLOG_LIKED_KEY + id;
-        // 1.查询top5点赞用户 zrange key 0 4
-        Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
+        // 1.查询top5点赞用户 zrange key 0 4，热点笔记读本地副本
+        Set<String> top5 = cacheClient.readThrough(key, () -> stringRedisTemplate.opsForZSet().range(key, 0, 4));
         if (top5 == null || top5.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
         // 2.解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-        // 3.根据id查询用户  WHERE id IN ( 5 , 1 ) ORDER BY FIELD(id, 5, 1)
-        List<UserDTO> userDTOS = userService.query()
-                .in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 3.根据id批量查询用户，按点赞顺序返回
+        List<UserDTO> userDTOS = userService.queryUserDTOs(ids);
         // 4.返回
         return Result.ok(userDTOS);
     }
@@ -210,12 +220,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         List<Blog> blogs = query()
                 .in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
-        blogs.forEach(blog -> {
-            // 查询发布blog用户
-            this.queryBlogUser(blog);
-            // 查询blog是否被当前点赞
-            this.isBlogLiked(blog);
-        });
+        // 查询发布blog用户
+        this.queryBlogUsers(blogs);
+        // 查询blog是否被当前点赞
+        blogs.forEach(this::isBlogLiked);
 
         // 6.封装并返回
         ScrollResult r = new ScrollResult();
@@ -0,0 +1,419 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.ReconcileReport;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillReconcileService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherCatalog;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀券Redis与数据库对账，按每个用户的已购件数比较
+ * <p>
+ * 1.HSCAN逐批遍历Redis订单hash（userId -> 已购件数），每批用一次IN + GROUP BY查询找出数据库里件数不够的用户；
+ * 这些订单可能还在队列里，等待宽限期后复查，仍然不够才算缺失；
+ * 2.按user_id键集分页汇总数据库订单件数，每页用pipeline批量HGET找出Redis里件数不够的用户；
+ * 3.比较Redis库存与数据库库存。
+ * 两边都是分批流式处理，不会整体加载。修复时缺失的件数批量补建订单（同时扣减数据库库存），
+ * 多出的件数批量累加回Redis订单hash；库存只在秒杀时间窗口之外用INCRBY修正，避免和线上扣减互相干扰。
+ */
+@Slf4j
+@Service
+public class SeckillReconcileServiceImpl implements ISeckillReconcileService {
+    private static final int SAMPLE_SIZE = 100;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillStockLease seckillStockLease;
+    @Resource
+    private SeckillVoucherCatalog seckillVoucherCatalog;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Value("${hmdp.reconcile.batch-size:1000}")
+    private int batchSize;
+    @Value("${hmdp.reconcile.grace:10000}")
+    private long graceMillis;
+    @Value("${hmdp.reconcile.auto-repair:false}")
+    private boolean autoRepair;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ConcurrentHashMap<Long, ReconcileReport> reports = new ConcurrentHashMap<>();
+
+    @Override
+    public Result reconcile(Long voucherId, boolean repair) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return Result.fail("秒杀券不存在");
+        }
+        ReconcileReport report = new ReconcileReport();
+        report.setVoucherId(voucherId);
+        report.setRepair(repair);
+        report.setState("running");
+        report.setBeginTime(System.currentTimeMillis());
+        ReconcileReport current = reports.compute(voucherId,
+                (id, old) -> old != null && "running".equals(old.getState()) ? old : report);
+        if (current != report) {
+            return Result.fail("对账进行中");
+        }
+        executor.submit(() -> run(report));
+        return Result.ok(report);
+    }
+
+    @Override
+    public Result queryReport(Long voucherId) {
+        ReconcileReport report = reports.get(voucherId);
+        if (report == null) {
+            return Result.fail("没有对账记录");
+        }
+        return Result.ok(report);
+    }
+
+    /**
+     * 定时对账本地目录中的所有秒杀券，默认不开启
+     */
+    @Scheduled(cron = "${hmdp.reconcile.cron:-}")
+    public void reconcileAll() {
+        for (Long voucherId : seckillVoucherCatalog.voucherIds()) {
+            reconcile(voucherId, autoRepair);
+        }
+    }
+
+    private void run(ReconcileReport report) {
+        Long voucherId = report.getVoucherId();
+        int shards = seckillStockShards.shardCount(voucherId);
+        try {
+            // 1.Redis -> 数据库，找出疑似缺失订单的用户及其Redis已购件数
+            Map<Long, Integer> suspects = scanRedisOrders(report, shards);
+            // 2.等待宽限期让队列中的订单落库，再复查
+            Map<Long, Integer> missing = Collections.emptyMap();
+            if (!suspects.isEmpty()) {
+                Thread.sleep(graceMillis);
+                missing = findMissingInDb(voucherId, suspects);
+            }
+            report.setMissingOrders(sum(missing));
+            report.setMissingSample(sample(missing.keySet()));
+            // 3.数据库 -> Redis，找出多出的件数
+            Map<Long, Integer> extra = scanDbOrders(report, shards);
+            report.setExtraOrders(sum(extra));
+            report.setExtraSample(sample(extra.keySet()));
+            // 4.修复订单
+            long repairedMissing = 0;
+            if (report.getRepair()) {
+                repairedMissing = repairMissing(voucherId, missing);
+                report.setRepairedMissing(repairedMissing);
+                report.setRepairedExtra(repairExtra(voucherId, extra, shards));
+            }
+            // 5.对账库存
+            reconcileStock(report, shards, report.getMissingOrders() - repairedMissing);
+            report.setState("done");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.setState("failed");
+            report.setErrorMsg("对账被中断");
+        } catch (Exception e) {
+            log.error("对账失败，优惠券id：{}", voucherId, e);
+            report.setState("failed");
+            report.setErrorMsg(e.getMessage());
+        } finally {
+            report.setCostMillis(System.currentTimeMillis() - report.getBeginTime());
+        }
+    }
+
+    /**
+     * @return 数据库件数少于Redis的用户 -> 该用户的Redis已购件数
+     */
+    private Map<Long, Integer> scanRedisOrders(ReconcileReport report, int shards) throws IOException {
+        Long voucherId = report.getVoucherId();
+        long redisOrders = 0;
+        Map<Long, Integer> suspects = new LinkedHashMap<>();
+        Map<Long, Integer> chunk = new LinkedHashMap<>(batchSize * 2);
+        ScanOptions options = ScanOptions.scanOptions().count(batchSize).build();
+        for (int shard = 0; shard < shards; shard++) {
+            String key = shards > 1 ? SeckillStockShards.orderKey(voucherId, shard) : SECKILL_ORDER_KEY + voucherId;
+            try (Cursor<Map.Entry<Object, Object>> cursor = stringRedisTemplate.opsForHash().scan(key, options)) {
+                while (cursor.hasNext()) {
+                    Map.Entry<Object, Object> entry = cursor.next();
+                    int count = Integer.parseInt(entry.getValue().toString());
+                    // 借库存失败释放名额后会留下件数为0的字段
+                    if (count <= 0) {
+                        continue;
+                    }
+                    redisOrders += count;
+                    chunk.put(Long.valueOf(entry.getKey().toString()), count);
+                    if (chunk.size() >= batchSize) {
+                        collectSuspects(voucherId, chunk, suspects);
+                        chunk.clear();
+                    }
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            collectSuspects(voucherId, chunk, suspects);
+        }
+        report.setRedisOrders(redisOrders);
+        return suspects;
+    }
+
+    private void collectSuspects(Long voucherId, Map<Long, Integer> redisCounts, Map<Long, Integer> suspects) {
+        for (Long userId : findMissingInDb(voucherId, redisCounts).keySet()) {
+            suspects.put(userId, redisCounts.get(userId));
+        }
+    }
+
+    /**
+     * 分批汇总数据库中这些用户的已购件数
+     * @param redisCounts 用户 -> Redis已购件数
+     * @return 数据库件数少于Redis的用户 -> 缺少的件数
+     */
+    private Map<Long, Integer> findMissingInDb(Long voucherId, Map<Long, Integer> redisCounts) {
+        Map<Long, Integer> missing = new LinkedHashMap<>();
+        List<Long> userIds = new ArrayList<>(redisCounts.keySet());
+        for (int from = 0; from < userIds.size(); from += batchSize) {
+            List<Long> chunk = userIds.subList(from, Math.min(from + batchSize, userIds.size()));
+            Map<Long, Integer> found = sumByUser(voucherOrderService.query()
+                    .select("user_id", "sum(quantity) as quantity")
+                    .eq("voucher_id", voucherId)
+                    .in("user_id", chunk)
+                    .groupBy("user_id")
+                    .list());
+            for (Long userId : chunk) {
+                int shortage = redisCounts.get(userId) - found.getOrDefault(userId, 0);
+                if (shortage > 0) {
+                    missing.put(userId, shortage);
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return Redis件数少于数据库的用户 -> 多出的件数
+     */
+    private Map<Long, Integer> scanDbOrders(ReconcileReport report, int shards) {
+        Long voucherId = report.getVoucherId();
+        List<Map<String, Object>> total = voucherOrderService.getBaseMapper().selectMaps(voucherOrderService.query()
+                .select("ifnull(sum(quantity), 0) as quantity")
+                .eq("voucher_id", voucherId)
+                .getWrapper());
+        report.setDbOrders(total.isEmpty() || total.get(0) == null
+                ? 0L : ((Number) total.get(0).values().iterator().next()).longValue());
+        Map<Long, Integer> extra = new LinkedHashMap<>();
+        long lastUserId = -1;
+        while (true) {
+            // 1.按 (voucher_id, user_id) 索引键集分页，汇总每个用户的件数
+            Map<Long, Integer> dbCounts = sumByUser(voucherOrderService.query()
+                    .select("user_id", "sum(quantity) as quantity")
+                    .eq("voucher_id", voucherId)
+                    .gt("user_id", lastUserId)
+                    .groupBy("user_id")
+                    .orderByAsc("user_id")
+                    .last("limit " + batchSize)
+                    .list());
+            if (dbCounts.isEmpty()) {
+                break;
+            }
+            List<Long> userIds = new ArrayList<>(dbCounts.keySet());
+            // 2.pipeline批量读取Redis订单hash中的已购件数
+            List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long userId : userIds) {
+                    connection.hGet(orderKey(voucherId, userId, shards).getBytes(StandardCharsets.UTF_8),
+                            userId.toString().getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            for (int i = 0; i < userIds.size(); i++) {
+                Object count = counts.get(i);
+                int redisCount = count == null ? 0 : Integer.parseInt(count.toString());
+                int surplus = dbCounts.get(userIds.get(i)) - redisCount;
+                if (surplus > 0) {
+                    extra.put(userIds.get(i), surplus);
+                }
+            }
+            if (userIds.size() < batchSize) {
+                break;
+            }
+            lastUserId = userIds.get(userIds.size() - 1);
+        }
+        return extra;
+    }
+
+    /**
+     * 批量补建缺失的件数，每个用户补一个订单，数据库库存同时扣减
+     * @return 补建的件数
+     */
+    private long repairMissing(Long voucherId, Map<Long, Integer> missing) {
+        long repaired = 0;
+        List<VoucherOrder> chunk = new ArrayList<>(batchSize);
+        for (Map.Entry<Long, Integer> entry : missing.entrySet()) {
+            chunk.add(new VoucherOrder()
+                    .setId(redisIdWorker.nextId("order"))
+                    .setUserId(entry.getKey())
+                    .setVoucherId(voucherId)
+                    .setQuantity(entry.getValue()));
+            if (chunk.size() >= batchSize) {
+                repaired += sumQuantity(voucherOrderService.createVoucherOrderBatch(chunk));
+                chunk = new ArrayList<>(batchSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            repaired += sumQuantity(voucherOrderService.createVoucherOrderBatch(chunk));
+        }
+        return repaired;
+    }
+
+    /**
+     * 批量把多出的件数累加回Redis订单hash，这些件数计入用户的限购
+     */
+    private long repairExtra(Long voucherId, Map<Long, Integer> extra, int shards) {
+        List<Map.Entry<Long, Integer>> entries = new ArrayList<>(extra.entrySet());
+        for (int from = 0; from < entries.size(); from += batchSize) {
+            List<Map.Entry<Long, Integer>> chunk = entries.subList(from, Math.min(from + batchSize, entries.size()));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Map.Entry<Long, Integer> entry : chunk) {
+                    Long userId = entry.getKey();
+                    connection.hIncrBy(orderKey(voucherId, userId, shards).getBytes(StandardCharsets.UTF_8),
+                            userId.toString().getBytes(StandardCharsets.UTF_8), entry.getValue());
+                }
+                return null;
+            });
+        }
+        return sum(extra);
+    }
+
+    /**
+     * @param pending 已扣Redis库存、尚未落库的件数
+     */
+    private void reconcileStock(ReconcileReport report, int shards, long pending) {
+        Long voucherId = report.getVoucherId();
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        // 已失效节点名下的租约先收回Redis库存，不把宕机节点卡住的库存当作仍在售
+        if (shards <= 1) {
+            seckillStockLease.reclaimExpired(voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            keys.add(shards > 1 ? SeckillStockShards.stockKey(voucherId, shard) : SECKILL_STOCK_KEY + voucherId);
+        }
+        long redisStock = 0;
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values != null) {
+            for (String value : values) {
+                redisStock += value == null ? 0 : Long.parseLong(value);
+            }
+        }
+        // 存活节点租走、还没卖出的库存也算在Redis库存里
+        if (shards <= 1) {
+            for (Object leased : stringRedisTemplate.opsForHash().values(SeckillStockLease.leasedKey(voucherId))) {
+                redisStock += Long.parseLong(leased.toString());
+            }
+        }
+        long dbStock = voucher.getStock();
+        long delta = redisStock - (dbStock - pending);
+        report.setRedisStock(redisStock);
+        report.setDbStock(dbStock);
+        report.setStockDelta(delta);
+        if (!report.getRepair() || delta == 0) {
+            return;
+        }
+        // 秒杀进行中不修正库存，读到的两边库存不在同一时刻
+        LocalDateTime now = LocalDateTime.now();
+        if (!now.isBefore(voucher.getBeginTime()) && !now.isAfter(voucher.getEndTime())) {
+            log.warn("优惠券{}秒杀进行中，库存差异{}只报告不修正", voucherId, delta);
+            return;
+        }
+        long correction = -delta;
+        if (shards > 1) {
+            // 分片库存只补不减，减少可能让单个分片变成负数
+            if (correction < 0) {
+                log.warn("优惠券{}分片库存多出{}，需要人工处理", voucherId, delta);
+                return;
+            }
+            seckillStockShards.addStock(voucherId, (int) correction, shards);
+        } else {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, correction);
+        }
+        if (correction > 0) {
+            soldOutRegistry.publishRestock(voucherId);
+        }
+        report.setRepairedStock(correction);
+    }
+
+    private static String orderKey(Long voucherId, Long userId, int shards) {
+        return shards > 1
+                ? SeckillStockShards.orderKey(voucherId, SeckillStockShards.homeShard(userId, shards))
+                : SECKILL_ORDER_KEY + voucherId;
+    }
+
+    private static Map<Long, Integer> sumByUser(List<VoucherOrder> sums) {
+        Map<Long, Integer> map = new LinkedHashMap<>(sums.size() * 2);
+        for (VoucherOrder sum : sums) {
+            map.put(sum.getUserId(), sum.getQuantity() == null ? 0 : sum.getQuantity());
+        }
+        return map;
+    }
+
+    private static long sumQuantity(List<VoucherOrder> orders) {
+        return orders.stream().mapToLong(VoucherOrder::getQuantity).sum();
+    }
+
+    private static long sum(Map<Long, Integer> counts) {
+        return counts.values().stream().mapToLong(Integer::longValue).sum();
+    }
+
+    private static List<Long> sample(Iterable<Long> userIds) {
+        List<Long> sample = new ArrayList<>(SAMPLE_SIZE);
+        for (Long userId : userIds) {
+            if (sample.size() >= SAMPLE_SIZE) {
+                break;
+            }
+            sample.add(userId);
+        }
+        return sample;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -29,6 +29,7 @@ import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -127,8 +128,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         RedisData redisData = new RedisData();
         redisData.setData(shop);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 3.写入Redis
+        // 3.写入Redis，并通知各节点删除一级缓存副本
         stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        cacheClient.invalidate(RedisConstants.CACHE_SHOP_KEY + id);
     }
 
     // 互斥锁缓存击穿
@@ -223,6 +225,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.delete(key);
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 加入布隆过滤器，否则查询新店铺会被直接判断为不存在
+        cacheClient.addToBloomFilter(RedisConstants.CACHE_SHOP_KEY, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -232,8 +243,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 更新数据库
         updateById(shop);
-        // 删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 删除缓存，连同本节点的热点副本
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
 
         return Result.ok();
     }
@@ -279,11 +290,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr,distance);
         });
-        // 5.根据id查询Shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD (id," + idStr + ")").list();
-        for (Shop shop : shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        // 5.根据id批量查询Shop：一次MGET读缓存，未命中的一次查库，按距离顺序返回
+        List<Shop> cached = cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 一级缓存中的对象是共享的，复制后再设置距离
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop : cached) {
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(copy);
         }
         // 6.返回
         return Result.ok(shops);
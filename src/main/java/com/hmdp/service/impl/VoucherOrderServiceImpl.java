@@ -1,43 +1,56 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.OrderStatus;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.Event;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
-import com.hmdp.event.KafkaOrderProducer;
+import com.hmdp.event.OrderQueue;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.OrderStatusRecorder;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillOrderCompensator;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherCatalog;
+import com.hmdp.utils.SeckillWaitingRoom;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -57,11 +70,35 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    @Resource
     private RedissonClient redissonClient;
     @Resource
-    private KafkaOrderProducer kafkaOrderProducer;
+    private OrderQueue orderQueue;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillStockLease seckillStockLease;
+    @Resource
+    private SeckillVoucherCatalog seckillVoucherCatalog;
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    private OrderStatusRecorder orderStatusRecorder;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    private SeckillOrderCompensator seckillOrderCompensator;
+
+    /**
+     * 等待同一用户前一个订单落库的最长时间
+     */
+    private static final long ORDER_LOCK_WAIT_SECONDS = 5;
 
-    IVoucherOrderService proxy;
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
     static {
@@ -70,141 +107,23 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
-    //异步处理线程池
-//    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-
-
-    //在类初始化之后执行，因为当这个类初始化好了之后，随时都是有可能要执行的
-//    @PostConstruct
-//    private void init() {
-//        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-//    }
-
-    // 用于线程池处理的任务
-    // 当初始化完毕后，就会去从消息队列对列中去拿消息
-    /*private class VoucherOrderHandler implements Runnable {
-
-        @Override
-        public void run() {
-
-            while (true) {
-                try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create("stream.orders", ReadOffset.lastConsumed())
-                    );
-                    // 2. 判断消息是否获取成功
-                    if (list == null || list.isEmpty()) {
-                        // 2.1.如果获取失败，说明没有消息，继续下一次循环
-                        continue;
-                    }
-                    //解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 2.2.如果获取成功，可以下单
-                    // 创建订单
-                    handleVoucherOrder(voucherOrder);
-                    // 3.ACK确认 XACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge("stream.orders", "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    // 处理异常消息
-                    handlePendingList();
-                }
-            }
-        }
-
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create("stream.orders", ReadOffset.from("0"))
-                    );
-                    // 2. 判断消息是否获取成功
-                    if (list == null || list.isEmpty()) {
-                        // 2.1.如果获取失败，说明pending-list中没有消息,结束循环
-                        break;
-                    }
-                    //解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 2.2.如果获取成功，可以下单
-                    // 创建订单
-                    handleVoucherOrder(voucherOrder);
-                    // 3.ACK确认 XACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge("stream.orders", "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    // 处理pending-list异常消息
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException interruptedException) {
-                        interruptedException.printStackTrace();
-                    }
-                }
-            }
-        }
-    }*/
-    //阻塞队列
-//    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    // 用于线程池处理的任务
-    // 当初始化完毕后，就会去从对列中去拿信息
-//    private class VoucherOrderHandler implements Runnable{
-//
-//        @Override
-//        public void run() {
-//
-//            while (true) {
-//                try {
-//                    // 1.获取队列中的订单信息,使用take()，当阻塞队列中没有元素时,线程会阻塞
-//                    VoucherOrder voucherOrder = orderTasks.take();
-//                    // 创建订单
-//                    handleVoucherOrder(voucherOrder);
-//                } catch (Exception e) {
-//                    log.error("处理订单异常", e);
-//                }
-//            }
-//        }
-//
-//        public void handleVoucherOrder(VoucherOrder voucherOrder) {
-//            Long userId = voucherOrder.getUserId();
-//            // 创建分布式锁对象
-//            RLock lock = redissonClient.getLock("lock:order:" + userId);
-//            // 获取锁
-//            boolean isLock = lock.tryLock();
-//            //获取锁失败
-//            if (!isLock) {
-//                log.error("不允许重复下单！");
-//                return;
-//            }
-//            // 获取锁成功
-//            try {
-//                // 通过代理对象调用该方法事务才会生效，不能用this调用
-//                proxy.createVoucherOrder(voucherOrder);
-//            } finally {
-//                //释放锁
-//                lock.unlock();
-//            }
-//        }
-//    }
-
     public void handleVoucherOrder(VoucherOrder voucherOrder) {
+        // 消费线程通过代理对象调用本方法，这里可以直接拿到当前代理
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
         Long userId = voucherOrder.getUserId();
         // 创建分布式锁对象
         RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 获取锁
-        boolean isLock = lock.tryLock();
-        //获取锁失败
+        // 获取锁，同一用户可以有多个订单同时在处理，等待前一个订单落库
+        boolean isLock;
+        try {
+            isLock = lock.tryLock(ORDER_LOCK_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待用户下单锁被中断", e);
+        }
+        //获取锁失败，抛出异常由调用方重试
         if (!isLock) {
-            log.error("不允许重复下单！");
-            return;
+            throw new IllegalStateException("等待用户下单锁超时，用户id：" + userId);
         }
         // 获取锁成功
         try {
@@ -218,28 +137,226 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 4.2.实现一人一单
+        // 4.2.实现每人限购
         Long userId = voucherOrder.getUserId();
-        Integer count = query().eq("user_id", userId)
-                .eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (count > 0) {
-            // 用户已经购买过了
-            log.error("用户已经购买过了");
+        int quantity = quantityOf(voucherOrder);
+        voucherOrder.setQuantity(quantity);
+        List<VoucherOrder> bought = query().select("id", "quantity")
+                .eq("user_id", userId)
+                .eq("voucher_id", voucherOrder.getVoucherId()).list();
+        if (bought.stream().anyMatch(o -> o.getId().equals(voucherOrder.getId()))) {
+            // 消息重复投递，订单已经创建过了
+            log.error("订单已经创建过了");
+            return;
+        }
+        int boughtQuantity = bought.stream().mapToInt(VoucherOrderServiceImpl::quantityOf).sum();
+        if (boughtQuantity + quantity > userLimit(voucherOrder.getVoucherId())) {
+            // 用户已购数量加上本单超过限购
+            log.error("超过每人限购数量");
+            failOrders(Collections.singletonList(voucherOrder), "超过每人限购数量");
             return;
         }
         // 5.扣减库存
         boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1")
+                .setSql("stock = stock - " + quantity)
                 .eq("voucher_id", voucherOrder.getVoucherId())
-                .gt("stock", 0) //乐观锁版本号法避免超卖,stock = voucher.getVoucher()会导致有些卖不出去，所以只需stock > 0 即可
+                .ge("stock", quantity) //乐观锁版本号法避免超卖,stock = voucher.getVoucher()会导致有些卖不出去，所以只需库存够本单数量即可
                 .update();
         if (!success) {
             // 扣减失败
             log.error("库存不足");
+            failOrders(Collections.singletonList(voucherOrder), "库存不足");
             return;
         }
         // 6.创建订单
         save(voucherOrder);
+        recordStatus(Collections.singletonList(voucherOrder.getId()), OrderStatus.CREATED);
+    }
+
+    @Override
+    public void handleVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        try {
+            // 一个事务内批量创建订单
+            proxy.createVoucherOrderBatch(voucherOrders);
+        } catch (Exception e) {
+            // 整批失败，退化为逐条处理，避免一条坏数据拖垮整批
+            log.error("批量创建订单失败，退化为逐条处理", e);
+            List<CompletableFuture<Void>> retries = new ArrayList<>();
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                try {
+                    proxy.handleVoucherOrder(voucherOrder);
+                } catch (Exception ex) {
+                    log.error("处理订单异常，转入重试，订单id：{}", voucherOrder.getId(), ex);
+                    retries.add(orderQueue.retry(voucherOrder, 1, ex.toString()));
+                }
+            }
+            // 失败的订单都转入重试后才返回，转入失败时抛出异常，调用方不提交位点
+            CompletableFuture.allOf(retries.toArray(new CompletableFuture[0])).join();
+        }
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        // 1.批内按订单id去重（消息重复投递）
+        Map<Long, VoucherOrder> unique = new LinkedHashMap<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            voucherOrder.setQuantity(quantityOf(voucherOrder));
+            unique.putIfAbsent(voucherOrder.getId(), voucherOrder);
+        }
+        // 2.一次查询这些用户的已购订单，剔除已经落库的订单，并统计每人已购数量
+        Set<Long> voucherIds = new HashSet<>();
+        Set<Long> userIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : unique.values()) {
+            voucherIds.add(voucherOrder.getVoucherId());
+            userIds.add(voucherOrder.getUserId());
+        }
+        Map<String, Integer> bought = new HashMap<>();
+        query().select("id", "user_id", "voucher_id", "quantity")
+                .in("voucher_id", voucherIds)
+                .in("user_id", userIds)
+                .list()
+                .forEach(o -> {
+                    unique.remove(o.getId());
+                    bought.merge(o.getUserId() + ":" + o.getVoucherId(), quantityOf(o), Integer::sum);
+                });
+        // 3.按顺序累加每人已购数量，超过限购的订单失败
+        Map<Long, Integer> userLimits = new HashMap<>();
+        List<VoucherOrder> overLimit = new ArrayList<>();
+        Iterator<VoucherOrder> iterator = unique.values().iterator();
+        while (iterator.hasNext()) {
+            VoucherOrder voucherOrder = iterator.next();
+            String key = voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId();
+            int total = bought.getOrDefault(key, 0) + voucherOrder.getQuantity();
+            if (total > userLimits.computeIfAbsent(voucherOrder.getVoucherId(), this::userLimit)) {
+                overLimit.add(voucherOrder);
+                iterator.remove();
+            } else {
+                bought.put(key, total);
+            }
+        }
+        if (!overLimit.isEmpty()) {
+            log.error("{}个订单超过每人限购数量，未能创建", overLimit.size());
+            failOrders(overLimit, "超过每人限购数量");
+        }
+        // 4.按优惠券分组，每张券只扣减一次库存
+        Map<Long, List<VoucherOrder>> byVoucher = unique.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> created = new ArrayList<>(unique.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            int granted = deductStock(entry.getKey(), orders);
+            if (granted < orders.size()) {
+                log.error("库存不足，优惠券{}有{}个订单未能创建", entry.getKey(), orders.size() - granted);
+                failOrders(new ArrayList<>(orders.subList(granted, orders.size())), "库存不足");
+            }
+            created.addAll(orders.subList(0, granted));
+        }
+        // 5.多行插入订单
+        if (!created.isEmpty()) {
+            getBaseMapper().insertBatch(created);
+            recordStatus(created.stream().map(VoucherOrder::getId).collect(Collectors.toList()), OrderStatus.CREATED);
+        }
+        return created;
+    }
+
+    /**
+     * 事务提交后再记录订单状态，事务回滚时不会留下错误的状态
+     */
+    private void recordStatus(List<Long> orderIds, OrderStatus status) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            orderStatusRecorder.record(orderIds, status);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                orderStatusRecorder.record(orderIds, status);
+            }
+        });
+    }
+
+    /**
+     * 事务提交后再把订单按最终失败交给订单队列，由队列保留失败原因并补偿Redis库存和已购数量
+     */
+    private void failOrders(List<VoucherOrder> voucherOrders, String reason) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            voucherOrders.forEach(voucherOrder -> failOrder(voucherOrder, reason));
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                voucherOrders.forEach(voucherOrder -> failOrder(voucherOrder, reason));
+            }
+        });
+    }
+
+    /**
+     * 订单队列在投递失败时会直接补偿，这里不等待，补偿也失败时只能记录下来由库存对账发现
+     */
+    private void failOrder(VoucherOrder voucherOrder, String reason) {
+        orderQueue.fail(voucherOrder, reason).whenComplete((result, ex) -> {
+            if (ex != null) {
+                log.error("订单{}最终失败但未能补偿，原因：{}", voucherOrder.getId(), reason, ex);
+            }
+        });
+    }
+
+    /**
+     * 聚合扣减库存，库存不够整批扣减时按顺序扣减剩余库存能满足的前若干个订单
+     * @return 拿到库存的订单数，即orders中前多少个订单扣减成功
+     */
+    private int deductStock(Long voucherId, List<VoucherOrder> orders) {
+        int total = orders.stream().mapToInt(VoucherOrder::getQuantity).sum();
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + total)
+                .eq("voucher_id", voucherId)
+                .ge("stock", total)
+                .update();
+        if (success) {
+            return orders.size();
+        }
+        // 锁住库存行，读出剩余库存后再扣减
+        SeckillVoucher voucher = seckillVoucherService.query()
+                .eq("voucher_id", voucherId)
+                .last("FOR UPDATE")
+                .one();
+        int stock = voucher == null ? 0 : voucher.getStock();
+        int granted = 0;
+        int deducted = 0;
+        for (VoucherOrder voucherOrder : orders) {
+            if (deducted + voucherOrder.getQuantity() > stock) {
+                break;
+            }
+            deducted += voucherOrder.getQuantity();
+            granted++;
+        }
+        if (deducted > 0) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock - " + deducted)
+                    .eq("voucher_id", voucherId)
+                    .update();
+        }
+        return granted;
+    }
+
+    /**
+     * 每人限购数量，优先取本地秒杀券目录，已经移出目录的券查数据库
+     */
+    private int userLimit(Long voucherId) {
+        SeckillVoucherCatalog.Entry entry = seckillVoucherCatalog.get(voucherId);
+        if (entry != null) {
+            return entry.getUserLimit();
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        return voucher == null || voucher.getUserLimit() == null ? 1 : voucher.getUserLimit();
+    }
+
+    private static int quantityOf(VoucherOrder voucherOrder) {
+        // 升级前入队的订单没有购买数量，按1件处理
+        return voucherOrder.getQuantity() == null ? 1 : voucherOrder.getQuantity();
     }
 
 
@@ -273,52 +390,329 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //    }
 
     @Override
-    public Result seckillVoucher(Long voucherId) {
+    public Result seckillVoucher(Long voucherId, int quantity) {
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString()
-        );
-        int r = result.intValue();
+        // 0.本地判断券、购买数量、时间窗口、售罄标记和限流，不访问Redis
+        SeckillVoucherCatalog.Entry voucher = seckillVoucherCatalog.get(voucherId);
+        Result rejected = checkLocally(voucherId, userId, quantity, voucher);
+        if (rejected != null) {
+            return rejected;
+        }
+        // 0.1.等候室券只有排队号已放行的用户才能进入秒杀脚本
+        Result notAdmitted = checkAdmitted(voucherId, userId, voucher).join();
+        if (notAdmitted != null) {
+            return notAdmitted;
+        }
+        long generation = soldOutRegistry.generation(voucherId);
+        // 1.执行lua脚本，分片库存的券走分片脚本，脚本内以Redis时间再次判断时间窗口
+        int r;
+        long orderId = 0;
+        boolean enqueuedInScript = false;
+        int shards = voucher.getShards();
+        if (isLeased(voucher)) {
+            // 1.0.租约模式在本地扣减库存，限购批量到Redis确认
+            r = leaseSeckill(voucherId, userId, quantity, voucher).join();
+        } else if (shards > 1) {
+            r = seckillStockShards.seckill(voucherId, userId, shards, voucher.getBeginMillis(), voucher.getEndMillis(),
+                    seckillRateLimiter.getRedisWindowMillis(), seckillRateLimiter.getRedisLimit(),
+                    quantity, voucher.getUserLimit());
+        } else {
+            // 1.1.订单队列支持在脚本内入队时，扣库存和入队在一次往返内原子完成，订单id需要提前生成
+            String streamKey = orderQueue.scriptStreamKey();
+            if (streamKey != null) {
+                enqueuedInScript = true;
+                orderId = redisIdWorker.nextId("order");
+            }
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    seckillScriptArgs(voucherId, userId, orderId, enqueuedInScript ? streamKey : "", quantity, voucher)
+                            .toArray()
+            );
+            r = result.intValue();
+        }
         // 2.判断结果是否为0
-        if (r != 0) {
-            // 2.1.不为0 ，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        Result failed = checkScriptResult(voucherId, r, generation);
+        if (failed != null) {
+            return failed;
+        }
+        // 2.2. 为0，有购买资格，脚本内已经入队的直接返回订单id
+        if (enqueuedInScript) {
+            orderStatusRecorder.record(orderId, OrderStatus.QUEUED);
+            return Result.ok(orderId);
         }
-        // 2.2. 为0，有购买资格，把订单信息保存到阻塞队列
         // 3.1.创建订单
         VoucherOrder voucherOrder = new VoucherOrder();
-        // 3.2.订单id
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        // 3.3.用户id
-        voucherOrder.setUserId(userId);
-        // 3.4.优惠券id
-        voucherOrder.setVoucherId(voucherId);
-        // 3.5.放入阻塞队列
-//        orderTasks.add(voucherOrder);
-        // 3.5.秒杀成功，发送消息到kafka
-        sendOrderMsgToKafka(orderId, voucherId, userId);
-        // 3.6.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        try {
+            // 3.2.订单id
+            orderId = redisIdWorker.nextId("order");
+            voucherOrder.setId(orderId);
+            // 3.3.用户id
+            voucherOrder.setUserId(userId);
+            // 3.4.优惠券id
+            voucherOrder.setVoucherId(voucherId);
+            // 3.5.购买数量
+            voucherOrder.setQuantity(quantity);
+            // 3.6.秒杀成功，投递到订单队列
+            orderQueue.publish(voucherOrder);
+        } catch (RuntimeException e) {
+            // 3.7.脚本已扣库存、记了已购数量，订单没有入队，归还后返回失败
+            log.error("秒杀订单入队失败，优惠券id：{}，用户id：{}", voucherId, userId, e);
+            seckillOrderCompensator.rollback(voucherId, userId, quantity, e.toString());
+            return Result.fail("系统繁忙，请稍后再试");
+        }
+        orderStatusRecorder.record(orderId, OrderStatus.QUEUED);
         // 3.返回订单id
         return Result.ok(orderId);
     }
 
-    public void sendOrderMsgToKafka(long orderId, Long voucherId, Long userId) {
-        Map<String, Object> data = new HashMap<>();
-        data.put("voucherId", voucherId);
-//        data.put("buyNumber", buyNumber);
-        Event event = new Event()
-                .setTopic(TOPIC_CREATE_ORDER)
-                .setUserId(userId)
-                .setEntityId(orderId)
-                .setData(data);
-        kafkaOrderProducer.publishEvent(event);
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId, int quantity) {
+        //获取用户
+        Long userId = UserHolder.getUser().getId();
+        // 0.本地判断，在请求线程上完成
+        SeckillVoucherCatalog.Entry voucher = seckillVoucherCatalog.get(voucherId);
+        Result rejected = checkLocally(voucherId, userId, quantity, voucher);
+        if (rejected != null) {
+            return CompletableFuture.completedFuture(rejected);
+        }
+        // 0.1.等候室券先确认排队号已放行
+        return checkAdmitted(voucherId, userId, voucher)
+                .thenCompose(UserHolder.wrap(notAdmitted -> notAdmitted != null
+                        ? CompletableFuture.completedFuture(notAdmitted)
+                        : seckillAdmittedAsync(voucherId, userId, quantity, voucher)))
+                .exceptionally(e -> {
+                    log.error("异步秒杀失败，优惠券id：{}，用户id：{}", voucherId, userId, e);
+                    return Result.fail("系统繁忙，请稍后再试");
+                });
+    }
+
+    private CompletableFuture<Result> seckillAdmittedAsync(Long voucherId, Long userId, int quantity,
+                                                           SeckillVoucherCatalog.Entry voucher) {
+        long generation = soldOutRegistry.generation(voucherId);
+        // 1.脚本内入队时先异步生成订单id
+        String streamKey = voucher.getShards() > 1 || isLeased(voucher) ? null : orderQueue.scriptStreamKey();
+        CompletableFuture<Long> preallocated = streamKey != null
+                ? redisIdWorker.nextIdAsync("order") : CompletableFuture.completedFuture(0L);
+        // 2.后续每一步都在Lettuce、Kafka的回调线程上执行，回调中带上当前用户
+        return preallocated
+                .thenCompose(UserHolder.wrap(orderId -> executeScriptAsync(voucherId, userId, orderId, streamKey, quantity, voucher)
+                        .thenCompose(UserHolder.wrap(r -> {
+                            // 3.判断结果是否为0
+                            Result failed = checkScriptResult(voucherId, r, generation);
+                            if (failed != null) {
+                                return CompletableFuture.completedFuture(failed);
+                            }
+                            if (streamKey != null) {
+                                orderStatusRecorder.record(orderId, OrderStatus.QUEUED);
+                                return CompletableFuture.completedFuture(Result.ok(orderId));
+                            }
+                            // 4.生成订单id，投递到订单队列，失败时归还库存和已购数量
+                            return redisIdWorker.nextIdAsync("order").thenCompose(UserHolder.wrap(id -> {
+                                VoucherOrder voucherOrder = new VoucherOrder()
+                                        .setId(id)
+                                        .setUserId(userId)
+                                        .setVoucherId(voucherId)
+                                        .setQuantity(quantity);
+                                return orderQueue.publishAsync(voucherOrder).thenApply(v -> {
+                                    orderStatusRecorder.record(id, OrderStatus.QUEUED);
+                                    return Result.ok(id);
+                                });
+                            })).handle((result, e) -> e == null
+                                    ? CompletableFuture.completedFuture(result)
+                                    : rollbackAsync(voucherId, userId, quantity, e))
+                                    .thenCompose(Function.identity());
+                        }))));
+    }
+
+    /**
+     * 脚本已放行，但生成订单id或入队失败：归还库存和用户已购数量，返回失败
+     */
+    private CompletableFuture<Result> rollbackAsync(Long voucherId, Long userId, int quantity, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        log.error("异步秒杀订单入队失败，优惠券id：{}，用户id：{}", voucherId, userId, cause);
+        // 回调可能在Lettuce IO线程上，补偿脚本是同步调用，换到公共线程池执行
+        return CompletableFuture.supplyAsync(() -> {
+            seckillOrderCompensator.rollback(voucherId, userId, quantity, cause.toString());
+            return Result.fail("系统繁忙，请稍后再试");
+        });
+    }
+
+    @Override
+    public Result joinWaitingRoom(Long voucherId) {
+        Long userId = UserHolder.getUser().getId();
+        SeckillVoucherCatalog.Entry voucher = seckillVoucherCatalog.get(voucherId);
+        if (voucher == null || !voucher.isStockReady()) {
+            return Result.fail("秒杀券不存在");
+        }
+        if (voucher.getWaitingRoomRate() <= 0) {
+            return Result.fail("该秒杀券无需排队");
+        }
+        if (System.currentTimeMillis() > voucher.getEndMillis()) {
+            return Result.fail("秒杀已结束");
+        }
+        // 1.本地已标记售罄，关闭等候室
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            seckillWaitingRoom.close(voucherId);
+            return Result.fail("库存不足");
+        }
+        // 2.领取排队号，重复进入返回原号码
+        long ticket = seckillWaitingRoom.join(voucherId, userId, voucher.getEndMillis());
+        if (ticket < 0) {
+            return Result.fail("库存不足");
+        }
+        return Result.ok(seckillWaitingRoom.position(voucherId, ticket, voucher.getWaitingRoomRate()));
+    }
+
+    @Override
+    public Result queryWaitingRoom(Long voucherId, Long ticket) {
+        SeckillVoucherCatalog.Entry voucher = seckillVoucherCatalog.get(voucherId);
+        if (voucher == null || voucher.getWaitingRoomRate() <= 0) {
+            return Result.fail("该秒杀券无需排队");
+        }
+        if (ticket == null || ticket <= 0) {
+            return Result.fail("排队号不合法");
+        }
+        // 只读本地的放行水位，不访问Redis
+        return Result.ok(seckillWaitingRoom.position(voucherId, ticket, voucher.getWaitingRoomRate()));
+    }
+
+    /**
+     * 等候室券判断用户的排队号是否已放行，本地水位为0时不访问Redis
+     * @return 未放行时返回失败结果，已放行或券没有等候室返回null
+     */
+    private CompletableFuture<Result> checkAdmitted(Long voucherId, Long userId, SeckillVoucherCatalog.Entry voucher) {
+        if (voucher.getWaitingRoomRate() <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long admitted = seckillWaitingRoom.admitted(voucherId);
+        if (admitted == 0) {
+            return CompletableFuture.completedFuture(Result.fail("还没轮到您，请在等候室排队"));
+        }
+        return seckillWaitingRoom.ticket(voucherId, userId).thenApply(ticket -> {
+            if (ticket == 0) {
+                return Result.fail("请先进入等候室排队");
+            }
+            if (ticket > admitted) {
+                return Result.fail("还没轮到您，前面还有" + (ticket - admitted) + "人");
+            }
+            return null;
+        });
+    }
+
+    private CompletableFuture<Integer> executeScriptAsync(Long voucherId, Long userId, long orderId, String streamKey,
+                                                          int quantity, SeckillVoucherCatalog.Entry voucher) {
+        if (isLeased(voucher)) {
+            return leaseSeckill(voucherId, userId, quantity, voucher);
+        }
+        if (voucher.getShards() > 1) {
+            return seckillStockShards.seckillAsync(voucherId, userId, voucher.getShards(),
+                    voucher.getBeginMillis(), voucher.getEndMillis(),
+                    seckillRateLimiter.getRedisWindowMillis(), seckillRateLimiter.getRedisLimit(),
+                    quantity, voucher.getUserLimit());
+        }
+        return reactiveStringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                Collections.emptyList(),
+                seckillScriptArgs(voucherId, userId, orderId, streamKey == null ? "" : streamKey, quantity, voucher)
+        ).next().map(Long::intValue).toFuture();
+    }
+
+    /**
+     * 配置了租约块大小且库存没有分片的券按节点本地租约扣减库存
+     */
+    private static boolean isLeased(SeckillVoucherCatalog.Entry voucher) {
+        return voucher.getLeaseBlock() > 0 && voucher.getShards() <= 1;
+    }
+
+    private CompletableFuture<Integer> leaseSeckill(Long voucherId, Long userId, int quantity,
+                                                    SeckillVoucherCatalog.Entry voucher) {
+        return seckillStockLease.seckill(voucherId, userId, quantity, voucher.getUserLimit(), voucher.getLeaseBlock(),
+                voucher.getBeginMillis(), voucher.getEndMillis());
     }
+
+    /**
+     * 本地判断券是否存在、购买数量是否合法、是否在时间窗口内、是否已售罄、是否被限流
+     * @return 不能秒杀时返回失败结果，可以秒杀返回null
+     */
+    private Result checkLocally(Long voucherId, Long userId, int quantity, SeckillVoucherCatalog.Entry voucher) {
+        // 1.查询本地秒杀券目录，判断券是否存在、秒杀是否在时间窗口内
+        if (voucher == null || !voucher.isStockReady()) {
+            return Result.fail("秒杀券不存在");
+        }
+        if (quantity < 1 || quantity > voucher.getUserLimit()) {
+            return Result.fail("购买数量不合法，每人限购" + voucher.getUserLimit() + "件");
+        }
+        long now = System.currentTimeMillis();
+        if (now < voucher.getBeginMillis()) {
+            return Result.fail("秒杀尚未开始");
+        }
+        if (now > voucher.getEndMillis()) {
+            return Result.fail("秒杀已结束");
+        }
+        // 只探测热点，库存key写多读少，不做本地提升
+        hotKeyDetector.record(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+        // 2.本地已标记售罄，直接拒绝
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 3.本地令牌桶限流，超出的请求不进入秒杀脚本
+        if (!seckillRateLimiter.tryAcquire(voucherId, userId)) {
+            return Result.fail("请求过于频繁，请稍后再试");
+        }
+        return null;
+    }
+
+    private List<String> seckillScriptArgs(Long voucherId, Long userId, long orderId, String streamKey,
+                                           int quantity, SeckillVoucherCatalog.Entry voucher) {
+        return Arrays.asList(
+                voucherId.toString(), userId.toString(), String.valueOf(orderId), streamKey,
+                String.valueOf(voucher.getBeginMillis()), String.valueOf(voucher.getEndMillis()),
+                String.valueOf(seckillRateLimiter.getRedisWindowMillis()), String.valueOf(seckillRateLimiter.getRedisLimit()),
+                String.valueOf(quantity), String.valueOf(voucher.getUserLimit())
+        );
+    }
+
+    /**
+     * @return 没有购买资格时返回失败结果，有资格返回null
+     */
+    private Result checkScriptResult(Long voucherId, int r, long generation) {
+        if (r == 0) {
+            return null;
+        }
+        // 1.库存已耗尽，记录本地售罄标记（本节点可能错过了售罄广播）并关闭等候室；
+        // 7只是不够本次购买数量，8是其他节点还有未用完的租约，都不标记
+        if (r == 1) {
+            soldOutRegistry.markSoldOut(voucherId, generation);
+            // 分片、租约模式的脚本不广播售罄，由拿到库存不足的节点关闭等候室
+            seckillWaitingRoom.close(voucherId);
+        } else if (r == 5) {
+            seckillRateLimiter.recordRedisShed(voucherId);
+        }
+        // 2.不为0 ，代表没有购买资格
+        return Result.fail(seckillFailMessage(r));
+    }
+
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "超过每人限购数量";
+            case 3:
+                return "秒杀尚未开始";
+            case 5:
+                return "请求过于频繁，请稍后再试";
+            case 7:
+                return "剩余库存不足，请减少购买数量";
+            case 8:
+                return "库存正在结算中，请稍后再试";
+            default:
+                return "秒杀已结束";
+        }
+    }
+
 //
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
@@ -8,9 +8,14 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
@@ -23,6 +28,7 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -31,6 +37,10 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -48,13 +58,75 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setUserLimit(voucher.getUserLimit() == null ? 1 : voucher.getUserLimit());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到Redis中
-        //SECKILL_STOCK_KEY 这个变量定义在RedisConstans中
-        //private static final String SECKILL_STOCK_KEY ="seckill:stock:"
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),
-                voucher.getStock().toString());
+        // 热点券按分片数拆分库存
+        Integer shards = voucher.getStockShards();
+        if (shards != null && shards > 1) {
+            seckillStockShards.initStock(voucher.getId(), voucher.getStock(), shards);
+        } else {
+            // 保存秒杀库存到Redis中
+            //SECKILL_STOCK_KEY 这个变量定义在RedisConstans中
+            //private static final String SECKILL_STOCK_KEY ="seckill:stock:"
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),
+                    voucher.getStock().toString());
+            // 极热点券按块租用库存到节点本地扣减
+            Integer leaseBlock = voucher.getLeaseBlock();
+            if (leaseBlock != null && leaseBlock > 0) {
+                stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_LEASE_KEY + voucher.getId(),
+                        leaseBlock.toString());
+            }
+        }
+        // 需求远超库存的券先进等候室排队，按号码分批放行
+        Integer waitingRoomRate = voucher.getWaitingRoomRate();
+        if (waitingRoomRate != null && waitingRoomRate > 0) {
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_ROOM_KEY + voucher.getId(),
+                    waitingRoomRate.toString());
+        }
+        // 事务提交后通知各节点刷新秒杀券目录，否则刷新时可能还查不到新券
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_CATALOG_CHANNEL, voucher.getId().toString());
+            }
+        });
+    }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补货数量必须大于0");
+        }
+        // 1.增加数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 2.事务提交后再增加Redis库存并广播补货，事务回滚时不会多出数据库里没有的库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try {
+                    int shards = seckillStockShards.shardCount(voucherId);
+                    if (shards > 1) {
+                        seckillStockShards.addStock(voucherId, count, shards);
+                    } else {
+                        stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_STOCK_KEY + voucherId, count);
+                    }
+                    // 3.广播补货，各节点清除本地售罄标记
+                    soldOutRegistry.publishRestock(voucherId);
+                } catch (Exception e) {
+                    // 数据库已补货，Redis库存少于数据库，由库存对账补上
+                    log.error("优惠券{}补货{}件写入Redis失败，等待对账修正", voucherId, count, e);
+                }
+            }
+        });
+        return Result.ok();
     }
 }
@@ -1,34 +1,419 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.RandomUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.hmdp.config.RedisListenerOverflowEvent;
 import com.hmdp.entity.RedisData;
 import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
 
 
+/**
+ * 缓存工具：可选的进程内一级缓存（L1）+ Redis（L2）
+ * <p>
+ * 一级缓存只缓存配置了有效期的key前缀，保存反序列化后的对象，命中时不访问Redis也不解析JSON。
+ * 容量有界，按W-TinyLFU决定保留哪些key。写入或删除缓存时通过 cache:invalidate 频道广播，
+ * 各节点删除自己的一级缓存副本和热点本地副本；消息丢失时副本最迟在前缀的有效期后过期。
+ * 一级缓存只用Redis中读到的值填充，读Redis期间同一分段的key失效过则放弃填充。
+ * <p>
+ * 逻辑过期的key按访问频率预刷新：近期访问次数达到阈值的key在逻辑过期前由有界线程池重建，读取不会等待数据库；
+ * 冷key不预刷新，过期不久时返回旧数据并异步刷新，过期超过 max-stale 后不再返回旧数据，同步重建。
+ * 缓存中没有的key在首次访问时加载，不需要预先写入。
+ */
+@Slf4j
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
+    private final HotKeyDetector hotKeyDetector;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final ObjectProvider<RedisBloomFilter> bloomFilterProvider;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 一级缓存中表示“数据不存在”的值
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    @Value("${hmdp.cache.l1.enabled:false}")
+    private boolean l1Enabled;
+    @Value("${hmdp.cache.l1.max-size:10000}")
+    private int l1MaxSize;
+    /**
+     * 各key前缀在一级缓存中的有效期，格式 前缀=毫秒,前缀=毫秒，没有配置的前缀不进一级缓存
+     */
+    @Value("${hmdp.cache.l1.ttl:}")
+    private String l1TtlConfig;
+
+    private TinyLfuCache<Object> l1;
+    private final Map<String, Long> l1Ttls = new LinkedHashMap<>();
+    private static final int VERSION_STRIPES = 1024;
+    /**
+     * 按key分段的失效次数，读Redis前后同一段的次数不一致说明期间该段有key失效，读到的值可能已经过时
+     */
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final LongAdder l1Hits = new LongAdder();
+    private final LongAdder l1Misses = new LongAdder();
+    private final LongAdder l2Hits = new LongAdder();
+    private final LongAdder l2Misses = new LongAdder();
+    /**
+     * 缓存key前缀 -> 该类实体id的布隆过滤器
+     */
+    private final Map<String, RedisBloomFilter> bloomFilters = new LinkedHashMap<>();
+    private final LongAdder bloomRejected = new LongAdder();
+    /**
+     * 正在重建的key -> 重建结果，同一节点内并发未命中的请求共用一次重建
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> rebuilding = new ConcurrentHashMap<>();
+    private final LongAdder singleFlightWaits = new LongAdder();
+    private final LongAdder dbLoads = new LongAdder();
+
+    /**
+     * 逻辑过期前多少毫秒开始预刷新
+     */
+    @Value("${hmdp.cache.refresh.ahead:5000}")
+    private long refreshAhead;
+    /**
+     * 一个扫描周期内（计数衰减后）访问次数达到该值才预刷新
+     */
+    @Value("${hmdp.cache.refresh.min-hits:2}")
+    private long refreshMinHits;
+    @Value("${hmdp.cache.refresh.max-keys:10000}")
+    private int refreshMaxKeys;
+    @Value("${hmdp.cache.refresh.threads:2}")
+    private int refreshThreads;
+    @Value("${hmdp.cache.refresh.queue-capacity:1000}")
+    private int refreshQueueCapacity;
+    /**
+     * 逻辑过期超过该时间的数据不再返回，毫秒
+     */
+    @Value("${hmdp.cache.refresh.max-stale:10000}")
+    private long maxStale;
+
+    /**
+     * 逻辑过期的key -> 预刷新条目
+     */
+    private final ConcurrentHashMap<String, RefreshEntry> refreshEntries = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor refreshExecutor;
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshRejected = new LongAdder();
+    private final LongAdder staleServed = new LongAdder();
+    private final LongAdder staleReloads = new LongAdder();
+
+    /**
+     * 重建锁的有效期，秒，持有锁的节点宕机后其他节点最多等这么久
+     */
+    private static final long LOCK_TTL_SECONDS = 10;
+    /**
+     * 没拿到重建锁时再次读Redis的间隔，毫秒
+     */
+    private static final long LOCK_RETRY_MILLIS = 50;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 热点key提升到本地后的有效期，毫秒，各节点之间的不一致不超过该时间
+     */
+    @Value("${hmdp.hotkey.local-ttl:1000}")
+    private long localTtl;
+    @Value("${hmdp.hotkey.local-max-size:1000}")
+    private int localMaxSize;
+
+    /**
+     * 热点key的本地副本
+     */
+    private final ConcurrentHashMap<String, LocalEntry> local = new ConcurrentHashMap<>();
+
+    private static final class LocalEntry {
+        final Object value;
+        final long expireAt;
+
+        LocalEntry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, HotKeyDetector hotKeyDetector,
+                       RedisMessageListenerContainer redisMessageListenerContainer,
+                       ObjectProvider<RedisBloomFilter> bloomFilterProvider) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.hotKeyDetector = hotKeyDetector;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.bloomFilterProvider = bloomFilterProvider;
+    }
+
+    @PostConstruct
+    private void init() {
+        for (String item : StrUtil.split(l1TtlConfig, ',', true, true)) {
+            int index = item.lastIndexOf('=');
+            l1Ttls.put(item.substring(0, index).trim(), Long.valueOf(item.substring(index + 1).trim()));
+        }
+        if (l1Enabled) {
+            l1 = new TinyLfuCache<>(l1MaxSize);
+        }
+        AtomicInteger threadIndex = new AtomicInteger();
+        refreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(refreshQueueCapacity), task -> {
+                    Thread thread = new Thread(task, "cache-refresh-" + threadIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        bloomFilterProvider.orderedStream().forEach(filter -> bloomFilters.put(filter.getKeyPrefix(), filter));
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            versions.incrementAndGet(stripe(key));
+            local.remove(key);
+            if (l1 != null) {
+                l1.remove(key);
+            }
+        }, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 失效消息可能丢失：清空本节点的热点副本和一级缓存，并作废正在进行的一级缓存回填
+     */
+    @EventListener
+    public void onListenerOverflow(RedisListenerOverflowEvent event) {
+        for (int i = 0; i < VERSION_STRIPES; i++) {
+            versions.incrementAndGet(i);
+        }
+        local.clear();
+        if (l1 != null) {
+            l1.clear();
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        refreshExecutor.shutdownNow();
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        invalidate(key);
+    }
+
+    /**
+     * 删除缓存，同时删除本节点的本地副本，并通知各节点删除一级缓存副本
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidate(key);
+    }
+
+    /**
+     * key被直接写入Redis后调用：删除本节点的本地副本，key配置了一级缓存时通知各节点删除一级缓存副本
+     */
+    public void invalidate(String key) {
+        if (invalidateLocal(key)) {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    /**
+     * 删除本节点的本地副本和一级缓存副本
+     * @return key配置了一级缓存，需要通知其他节点
+     */
+    private boolean invalidateLocal(String key) {
+        local.remove(key);
+        if (l1Ttl(key) <= 0) {
+            return false;
+        }
+        versions.incrementAndGet(stripe(key));
+        if (l1 != null) {
+            l1.remove(key);
+        }
+        return true;
+    }
+
+    private long l1Ttl(String key) {
+        for (Map.Entry<String, Long> entry : l1Ttls.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 读一级缓存
+     * @return 未启用或未命中返回null，缓存的空值返回NULL_VALUE
+     */
+    private Object l1Get(String key) {
+        if (l1 == null || l1Ttl(key) <= 0) {
+            return null;
+        }
+        Object value = l1.get(key, System.currentTimeMillis());
+        if (value == null) {
+            l1Misses.increment();
+        } else {
+            l1Hits.increment();
+        }
+        return value;
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    /**
+     * @return key所在分段的失效次数，读Redis之前取，写一级缓存时比较
+     */
+    private long version(String key) {
+        return versions.get(stripe(key));
+    }
+
+    /**
+     * 写一级缓存
+     * @param version 读Redis之前key所在分段的失效次数，期间该段有key失效则不写入
+     */
+    private void l1Put(String key, Object value, long version) {
+        long ttl = l1Ttl(key);
+        if (l1 == null || ttl <= 0 || version(key) != version) {
+            return;
+        }
+        l1.put(key, value, System.currentTimeMillis() + ttl);
+        // 判断和写入之间收到失效消息，删掉刚写入的旧值
+        if (version(key) != version) {
+            l1.remove(key);
+        }
+    }
+
+    /**
+     * 读Redis中的字符串缓存。配置了一级缓存的key直接读Redis，不读热点本地副本：
+     * 本地副本可能比一级缓存的失效消息更旧，读到后会被当作新值写入一级缓存
+     */
+    private String getForL1(String key) {
+        if (l1 == null || l1Ttl(key) <= 0) {
+            return get(key);
+        }
+        hotKeyDetector.record(key);
+        return stringRedisTemplate.opsForValue().get(key);
+    }
+
+    /**
+     * 布隆过滤器判断id一定不存在时返回true，调用方直接返回null，不访问Redis和数据库
+     */
+    private boolean definitelyAbsent(String keyPrefix, Object id) {
+        RedisBloomFilter filter = bloomFilters.get(keyPrefix);
+        if (filter == null || !(id instanceof Number) || filter.mightContain(((Number) id).longValue())) {
+            return false;
+        }
+        bloomRejected.increment();
+        return true;
+    }
+
+    /**
+     * 新增实体后调用，把id加入该前缀的布隆过滤器，否则新实体会被判断为不存在
+     */
+    public void addToBloomFilter(String keyPrefix, long id) {
+        RedisBloomFilter filter = bloomFilters.get(keyPrefix);
+        if (filter != null) {
+            filter.add(id);
+        }
+    }
+
+    /**
+     * 记录一次Redis查询是否命中
+     */
+    private void recordL2(String json) {
+        if (json == null) {
+            l2Misses.increment();
+        } else {
+            l2Hits.increment();
+        }
+    }
+
+    /**
+     * 只删除本节点的本地副本，用于key被其他方式修改后（如ZSET增删元素）
+     */
+    public void evictLocal(String key) {
+        local.remove(key);
+    }
+
+    /**
+     * 读取字符串缓存，热点key优先读本地副本
+     */
+    public String get(String key) {
+        return readThrough(key, () -> stringRedisTemplate.opsForValue().get(key));
+    }
+
+    /**
+     * 读多写少的key通过该方法读取：记录访问热度，热点key在本地保留一个短有效期的副本
+     * @param loader 从Redis读取的方法，返回null时不提升
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T readThrough(String key, Supplier<T> loader) {
+        hotKeyDetector.record(key);
+        if (!hotKeyDetector.isHot(key)) {
+            return loader.get();
+        }
+        // 1.本地副本未过期，直接返回
+        long now = System.currentTimeMillis();
+        LocalEntry entry = local.get(key);
+        if (entry != null && entry.expireAt > now) {
+            return (T) entry.value;
+        }
+        // 2.读Redis，写入本地副本
+        T value = loader.get();
+        if (value != null) {
+            if (local.size() >= localMaxSize) {
+                local.values().removeIf(e -> e.expireAt <= now);
+            }
+            if (local.size() < localMaxSize) {
+                local.put(key, new LocalEntry(value, now + localTtl));
+            }
+        }
+        return value;
     }
 
     /**
@@ -43,21 +428,36 @@ public class CacheClient {
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        invalidate(key);
     }
 
     // 缓存空值解决缓存穿透
+    @SuppressWarnings("unchecked")
     public  <R,ID> R queryPassThrough(
             String keyPrefix , ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        // 0. 布隆过滤器判断一定不存在，不写空值缓存
+        if (definitelyAbsent(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.1. 先查一级缓存
+        Object cached = l1Get(key);
+        if (cached != null) {
+            return cached == NULL_VALUE ? null : (R) cached;
+        }
+        long version = version(key);
         // 1. 从缓存中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        String json = getForL1(key);
+        recordL2(json);
         // 2. 命中，直接返回
         if (StrUtil.isNotBlank(json)) {
             R r = JSONUtil.toBean(json,type);
+            l1Put(key, r, version);
             return r;
         }
         // 判断命中的是否为空值
         if (json != null){
+            l1Put(key, NULL_VALUE, version);
             // 返回一个错误信息
             return null;
         }
@@ -76,114 +476,528 @@ public class CacheClient {
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 批量查询：一次MGET读Redis，未命中的id一次查询数据库，再用pipeline批量写回，空值同样缓存
+     * @param dbBatchFallback 按id批量查询数据库，返回 id -> 数据，不存在的id不在结果中
+     * @return 按ids的顺序返回，不存在的id不出现在结果中
+     */
+    @SuppressWarnings("unchecked")
+    public <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type,
+                                      Function<List<ID>, Map<ID, R>> dbBatchFallback, Long time, TimeUnit unit) {
+        Object[] values = new Object[ids.size()];
+        // 1.布隆过滤器排除一定不存在的id，其余先查一级缓存
+        List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (definitelyAbsent(keyPrefix, ids.get(i))) {
+                values[i] = NULL_VALUE;
+                continue;
+            }
+            values[i] = l1Get(keyPrefix + ids.get(i));
+            if (values[i] == null) {
+                misses.add(i);
+            }
+        }
+        if (!misses.isEmpty()) {
+            // 2.一级缓存未命中的key一次MGET
+            List<String> keys = misses.stream().map(i -> keyPrefix + ids.get(i)).collect(Collectors.toList());
+            long[] keyVersions = keys.stream().mapToLong(this::version).toArray();
+            List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+            List<Integer> dbMisses = new ArrayList<>();
+            for (int j = 0; j < misses.size(); j++) {
+                String json = jsons == null ? null : jsons.get(j);
+                recordL2(json);
+                if (json == null) {
+                    dbMisses.add(misses.get(j));
+                    continue;
+                }
+                // 空值表示数据不存在
+                Object value = json.isEmpty() ? NULL_VALUE : JSONUtil.toBean(json, type);
+                values[misses.get(j)] = value;
+                l1Put(keys.get(j), value, keyVersions[j]);
+            }
+            // 3.Redis未命中的id一次查询数据库并写回
+            if (!dbMisses.isEmpty()) {
+                loadBatch(keyPrefix, ids, values, dbMisses, dbBatchFallback, unit.toSeconds(time));
+            }
+        }
+        // 4.按输入顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (Object value : values) {
+            if (value != NULL_VALUE) {
+                result.add((R) value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 一次查询数据库加载未命中的id，查到的用pipeline写入Redis，查不到的写入空值，并通知各节点删除一级缓存副本
+     */
+    private <R, ID> void loadBatch(String keyPrefix, List<ID> ids, Object[] values, List<Integer> indexes,
+                                   Function<List<ID>, Map<ID, R>> dbBatchFallback, long ttlSeconds) {
+        List<ID> dbIds = indexes.stream().map(ids::get).distinct().collect(Collectors.toList());
+        dbLoads.increment();
+        Map<ID, R> loaded = dbBatchFallback.apply(dbIds);
+        Map<String, String> writes = new LinkedHashMap<>();
+        for (Integer i : indexes) {
+            R r = loaded.get(ids.get(i));
+            values[i] = r == null ? NULL_VALUE : r;
+            writes.put(keyPrefix + ids.get(i), r == null ? "" : JSONUtil.toJsonStr(r));
+        }
+        List<String> broadcasts = new ArrayList<>();
+        for (String key : writes.keySet()) {
+            if (invalidateLocal(key)) {
+                broadcasts.add(key);
+            }
+        }
+        byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        long nullTtlSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            writes.forEach((key, json) -> connection.setEx(key.getBytes(StandardCharsets.UTF_8),
+                    json.isEmpty() ? nullTtlSeconds : ttlSeconds, json.getBytes(StandardCharsets.UTF_8)));
+            for (String key : broadcasts) {
+                connection.publish(channel, key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
     // 逻辑过期解决缓存击穿
+    @SuppressWarnings("unchecked")
     public  <R,ID> R queryWithLogicalExpire(
             String keyPrefix , String lockKeyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,
             Long time, TimeUnit unit) {
+        if (definitelyAbsent(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-
-        // 1. 从缓存中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2. 未命中，直接返回
-        if (StrUtil.isBlank(json)) {
+        String lockKey = lockKeyPrefix + id;
+        R r;
+        long expireAt;
+        // 0. 先查一级缓存，缓存的是反序列化后的数据和逻辑过期时间
+        Object cached = l1Get(key);
+        if (cached == NULL_VALUE) {
             return null;
         }
+        if (cached != null) {
+            LogicalValue value = (LogicalValue) cached;
+            r = (R) value.data;
+            expireAt = value.expireAt;
+        } else {
+            long version = version(key);
+            // 1. 从缓存中查询商铺缓存
+            String json = getForL1(key);
+            recordL2(json);
+            // 2. 命中空值，数据不存在
+            if (json != null && json.isEmpty()) {
+                l1Put(key, NULL_VALUE, version);
+                return null;
+            }
+            // 2.1. 未命中，首次访问时加载并写入逻辑过期数据，同一个key只有一个线程查库
+            if (json == null) {
+                Object value = singleFlight(key, () -> rebuildLogical(key, lockKey, type, () -> dbFallback.apply(id), time, unit));
+                if (value == NULL_VALUE) {
+                    return null;
+                }
+                track(key, lockKey, id, dbFallback, time, unit).expireAt = System.currentTimeMillis() + unit.toMillis(time);
+                return (R) value;
+            }
 
-        // 3.命中，先把jason反序列化未java对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 4.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
+            // 3.命中，先把jason反序列化未java对象
+            RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+            JSONObject data = (JSONObject) redisData.getData();
+            r = JSONUtil.toBean(data, type);
+            expireAt = toMillis(redisData.getExpireTime());
+            l1Put(key, new LogicalValue(r, expireAt), version);
+        }
+        // 4.记录访问，热点key由预刷新任务在过期前重建
+        RefreshEntry entry = track(key, lockKey, id, dbFallback, time, unit);
+        entry.expireAt = expireAt;
+        long now = System.currentTimeMillis();
+        if (expireAt > now){
             // 5.未过期，直接返回店铺信息
             return r;
         }
+        // 6.过期不久，返回旧数据，提交异步刷新
+        if (now - expireAt <= maxStale) {
+            staleServed.increment();
+            scheduleRefresh(entry);
+            return r;
+        }
+        // 7.过期太久（很少访问的key），不再返回旧数据，同步重建
+        staleReloads.increment();
+        Object value = singleFlight(key, () -> rebuildLogical(key, lockKey, type, () -> dbFallback.apply(id), time, unit));
+        return value == NULL_VALUE ? null : (R) value;
+    }
 
-        // 6.已过期，尝试缓存重建
-        // 6.1获取互斥锁
-        String lockKey = lockKeyPrefix+id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2获取成功，开启独立线程，实现缓存重建
-        if (isLock) {
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+    /**
+     * 记录一次访问，返回key的预刷新条目；跟踪的key数量已满时返回不登记的临时条目
+     */
+    private <R, ID> RefreshEntry track(String key, String lockKey, ID id, Function<ID, R> dbFallback,
+                                       Long time, TimeUnit unit) {
+        RefreshEntry entry = refreshEntries.get(key);
+        if (entry == null) {
+            Supplier<Object> loader = () -> dbFallback.apply(id);
+            entry = refreshEntries.size() >= refreshMaxKeys
+                    ? new RefreshEntry(key, lockKey, loader, unit.toSeconds(time))
+                    : refreshEntries.computeIfAbsent(key, k -> new RefreshEntry(k, lockKey, loader, unit.toSeconds(time)));
+        }
+        entry.hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * 扫描跟踪的key：访问计数衰减，热点key在逻辑过期前提交刷新，冷key不预刷新，长时间没有访问的移出跟踪
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh.interval:1000}")
+    public void refreshAhead() {
+        long now = System.currentTimeMillis();
+        Iterator<RefreshEntry> iterator = refreshEntries.values().iterator();
+        while (iterator.hasNext()) {
+            RefreshEntry entry = iterator.next();
+            // 1.访问计数每个周期减半，只反映近期的热度
+            long hits = entry.hits.getAndUpdate(h -> h >> 1);
+            // 2.冷key到期后由读取触发重建，计数衰减到0的移出跟踪
+            if (hits < refreshMinHits) {
+                if (hits == 0) {
+                    iterator.remove();
+                }
+                continue;
+            }
+            // 3.热点key临近逻辑过期，提交刷新
+            if (entry.expireAt - now <= refreshAhead) {
+                scheduleRefresh(entry);
+            }
+        }
+    }
+
+    /**
+     * 提交到有界的刷新线程池，同一个key同时只有一个刷新任务；队列满时放弃，下个周期或下次读取再提交
+     */
+    private void scheduleRefresh(RefreshEntry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
                 try {
-                    //模拟延迟
-                    Thread.sleep(200);
-                    //查询数据库
-                    R newR = dbFallback.apply(id);
-                    //重建缓存
-                    this.setWithLogicalExpire(key,newR,time,unit);
+                    refresh(entry);
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    log.error("刷新缓存失败，key：{}", entry.key, e);
                 } finally {
-                    //释放锁
-                    this.unlock(lockKey);
+                    entry.refreshing.set(false);
                 }
             });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+            refreshRejected.increment();
         }
-        // 6.3返回过期的店铺信息
-        return r;
     }
 
+    /**
+     * 拿到重建锁的节点查询数据库并写入新的逻辑过期数据，没拿到说明其他节点正在刷新
+     */
+    private void refresh(RefreshEntry entry) {
+        String token = tryLock(entry.lockKey);
+        if (token == null) {
+            return;
+        }
+        try {
+            // 1.其他节点刚刷新过，只更新本地记录的过期时间
+            String json = stringRedisTemplate.opsForValue().get(entry.key);
+            if (StrUtil.isNotBlank(json)) {
+                long expireAt = toMillis(JSONUtil.toBean(json, RedisData.class).getExpireTime());
+                if (expireAt - System.currentTimeMillis() > refreshAhead) {
+                    entry.expireAt = expireAt;
+                    return;
+                }
+            }
+            // 2.查询数据库重建
+            dbLoads.increment();
+            refreshes.increment();
+            Object value = entry.loader.get();
+            if (value == null) {
+                // 数据已删除，下次读取时写入空值
+                delete(entry.key);
+                refreshEntries.remove(entry.key, entry);
+                return;
+            }
+            setWithLogicalExpire(entry.key, value, entry.ttlSeconds, TimeUnit.SECONDS);
+            entry.expireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(entry.ttlSeconds);
+        } finally {
+            unlock(entry.lockKey, token);
+        }
+    }
+
+    /**
+     * 与互斥重建相同的等待方式，但只接受Redis中未逻辑过期的数据
+     * @return 查到的数据，数据不存在返回NULL_VALUE
+     */
+    private <R> Object rebuildLogical(
+            String key, String lockKey, Class<R> type, Supplier<R> loader, Long time, TimeUnit unit) {
+        while (true) {
+            // 1.获取互斥锁
+            String token = tryLock(lockKey);
+            if (token == null) {
+                // 2.其他节点正在重建，等待后读Redis
+                sleepBeforeRetry();
+                Object value = readFresh(key, type);
+                if (value != null) {
+                    return value;
+                }
+                continue;
+            }
+            try {
+                // 3.拿到锁后再查一次Redis，可能刚被其他节点重建
+                Object value = readFresh(key, type);
+                if (value != null) {
+                    return value;
+                }
+                // 4.根据id查询数据库
+                dbLoads.increment();
+                R r = loader.get();
+                // 5.不存在，将空值写入redis
+                if (r == null) {
+                    stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                    invalidate(key);
+                    return NULL_VALUE;
+                }
+                // 6.存在，写入逻辑过期数据
+                this.setWithLogicalExpire(key, r, time, unit);
+                return r;
+            } finally {
+                // 7.释放锁
+                unlock(lockKey, token);
+            }
+        }
+    }
+
+    /**
+     * @return Redis中未逻辑过期的数据，空值返回NULL_VALUE，没有或已过期返回null
+     */
+    private <R> Object readFresh(String key, Class<R> type) {
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (json == null) {
+            return null;
+        }
+        if (json.isEmpty()) {
+            return NULL_VALUE;
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        if (!redisData.getExpireTime().isAfter(LocalDateTime.now())) {
+            return null;
+        }
+        return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @SuppressWarnings("unchecked")
     public <R, ID> R queryWithMutex(
             String keyPrefix, String lockKeyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 0.布隆过滤器判断一定不存在
+        if (definitelyAbsent(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 0.1.先查一级缓存
+        Object cached = l1Get(key);
+        if (cached != null) {
+            return cached == NULL_VALUE ? null : (R) cached;
+        }
+        long version = version(key);
         // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        String shopJson = getForL1(key);
+        recordL2(shopJson);
         // 2.判断是否存在
         if (StrUtil.isNotBlank(shopJson)) {
             // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+            R r = JSONUtil.toBean(shopJson, type);
+            l1Put(key, r, version);
+            return r;
         }
         // 判断命中的是否是空值
         if (shopJson != null) {
+            l1Put(key, NULL_VALUE, version);
             // 返回一个错误信息
             return null;
         }
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey = lockKeyPrefix + id;
-        R r = null;
+        // 4.实现缓存重建：本节点内同一个key只有一个线程重建，其他线程等它的结果，不自旋也不访问Redis
+        Object value = singleFlight(key, () -> rebuildWithMutex(key, lockKeyPrefix + id, id, type, dbFallback, time, unit));
+        return value == NULL_VALUE ? null : (R) value;
+    }
+
+    /**
+     * 同一个key只有第一个线程执行重建，并发的其他线程等待并共用它的结果
+     */
+    private Object singleFlight(String key, Supplier<Object> rebuild) {
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = rebuilding.putIfAbsent(key, flight);
+        if (leader != null) {
+            singleFlightWaits.increment();
+            return leader.join();
+        }
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, lockKeyPrefix, id, type, dbFallback, time, unit);
-            }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
+            Object value = rebuild.get();
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            rebuilding.remove(key, flight);
+        }
+    }
+
+    /**
+     * 拿到分布式锁的节点查询数据库重建缓存，没拿到的节点隔一段时间读一次Redis，直到重建完成或拿到锁
+     * @return 查到的数据，数据不存在返回NULL_VALUE
+     */
+    private <R, ID> Object rebuildWithMutex(
+            String key, String lockKey, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        while (true) {
+            // 1.获取互斥锁
+            String token = tryLock(lockKey);
+            if (token == null) {
+                // 2.其他节点正在重建，等待后读Redis
+                sleepBeforeRetry();
+                String json = stringRedisTemplate.opsForValue().get(key);
+                if (json != null) {
+                    return json.isEmpty() ? NULL_VALUE : JSONUtil.toBean(json, type);
+                }
+                continue;
             }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
+            try {
+                // 3.拿到锁后再查一次Redis，可能刚被其他节点重建
+                String json = stringRedisTemplate.opsForValue().get(key);
+                if (json != null) {
+                    return json.isEmpty() ? NULL_VALUE : JSONUtil.toBean(json, type);
+                }
+                // 4.根据id查询数据库
+                dbLoads.increment();
+                R r = dbFallback.apply(id);
+                // 5.不存在，将空值写入redis
+                if (r == null) {
+                    stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                    return NULL_VALUE;
+                }
+                // 6.存在，写入redis
+                this.set(key, r, time, unit);
+                return r;
+            } finally {
+                // 7.释放锁
+                unlock(lockKey, token);
+            }
+        }
+    }
+
+    private static void sleepBeforeRetry() {
+        try {
+            Thread.sleep(LOCK_RETRY_MILLIS);
         } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            // 7.释放锁
-            unlock(lockKey);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存重建被中断", e);
         }
-        // 8.返回
-        return r;
     }
 
+    /**
+     * 一级缓存中逻辑过期的数据
+     */
+    private static final class LogicalValue {
+        final Object data;
+        final long expireAt;
 
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.MINUTES);
-        return BooleanUtil.isTrue(flag);
+        LogicalValue(Object data, long expireAt) {
+            this.data = data;
+            this.expireAt = expireAt;
+        }
     }
 
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+    /**
+     * 逻辑过期key的预刷新条目
+     */
+    private static final class RefreshEntry {
+        final String key;
+        final String lockKey;
+        final Supplier<Object> loader;
+        final long ttlSeconds;
+        /**
+         * 近期访问次数，每个扫描周期减半
+         */
+        final AtomicLong hits = new AtomicLong();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        /**
+         * 最近一次读到或写入的逻辑过期时间
+         */
+        volatile long expireAt;
+
+        RefreshEntry(String key, String lockKey, Supplier<Object> loader, long ttlSeconds) {
+            this.key = key;
+            this.lockKey = lockKey;
+            this.loader = loader;
+            this.ttlSeconds = ttlSeconds;
+        }
+    }
+
+    /**
+     * @return 一级缓存、Redis的命中次数和命中率，热点key本地副本数量，布隆过滤器状态和拦截次数，
+     * 互斥重建时等待同节点重建结果的请求数和查询数据库的次数，逻辑过期key的预刷新情况
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> l1Stats = new LinkedHashMap<>();
+        l1Stats.put("enabled", l1 != null);
+        l1Stats.put("size", l1 == null ? 0 : l1.size());
+        l1Stats.put("hits", l1Hits.sum());
+        l1Stats.put("misses", l1Misses.sum());
+        l1Stats.put("hitRatio", ratio(l1Hits.sum(), l1Misses.sum()));
+        l1Stats.put("evictions", l1 == null ? 0 : l1.evictions());
+        l1Stats.put("rejections", l1 == null ? 0 : l1.rejections());
+        Map<String, Object> l2Stats = new LinkedHashMap<>();
+        l2Stats.put("hits", l2Hits.sum());
+        l2Stats.put("misses", l2Misses.sum());
+        l2Stats.put("hitRatio", ratio(l2Hits.sum(), l2Misses.sum()));
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("l1", l1Stats);
+        stats.put("l2", l2Stats);
+        stats.put("hotKeyLocalSize", local.size());
+        Map<String, Object> bloomStats = new LinkedHashMap<>();
+        bloomFilters.forEach((prefix, filter) -> bloomStats.put(filter.getName(), filter.stats()));
+        stats.put("bloom", bloomStats);
+        stats.put("bloomRejected", bloomRejected.sum());
+        stats.put("singleFlightWaits", singleFlightWaits.sum());
+        stats.put("dbLoads", dbLoads.sum());
+        Map<String, Object> refreshStats = new LinkedHashMap<>();
+        refreshStats.put("tracked", refreshEntries.size());
+        refreshStats.put("queued", refreshExecutor.getQueue().size());
+        refreshStats.put("refreshes", refreshes.sum());
+        refreshStats.put("rejected", refreshRejected.sum());
+        refreshStats.put("staleServed", staleServed.sum());
+        refreshStats.put("staleReloads", staleReloads.sum());
+        stats.put("refresh", refreshStats);
+        return stats;
+    }
+
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * @return 加锁成功返回本次加锁的标识，释放时凭标识释放；失败返回null
+     */
+    private String tryLock(String key){
+        String token = UUID.randomUUID().toString(true);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, token, LOCK_TTL_SECONDS, TimeUnit.SECONDS);
+        return BooleanUtil.isTrue(flag) ? token : null;
+    }
+
+    /**
+     * 锁中的标识与加锁时一致才释放，锁过期后被其他节点拿到时不会误删
+     */
+    private void unlock(String key, String token){
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token);
     }
 
 }
@@ -0,0 +1,181 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 采样热点key探测
+ * <p>
+ * 按key前缀（最后一个':'及之前的部分）各维护一个Count-Min Sketch和top-K表，
+ * 访问按采样率计数，计数每个衰减周期减半，只反映最近的访问热度。
+ * 估算访问次数达到阈值、且在本前缀top-K中的key为热点key。
+ */
+@Component
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 2048;
+    private static final int[] SEEDS = {0x9E3779B1, 0x7F4A7C15, 0x2545F491, 0x61C88647};
+    /**
+     * 前缀数量上限，避免key写法不规范时无限增长
+     */
+    private static final int MAX_PREFIXES = 256;
+
+    @Value("${hmdp.hotkey.sample-rate:0.1}")
+    private double sampleRate;
+    @Value("${hmdp.hotkey.top-k:20}")
+    private int topK;
+    @Value("${hmdp.hotkey.threshold:100}")
+    private long threshold;
+
+    private final ConcurrentHashMap<String, Sketch> sketches = new ConcurrentHashMap<>();
+    /**
+     * 当前热点key，读路径只查这个集合
+     */
+    private volatile Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sampled = new AtomicLong();
+
+    private final class Sketch {
+        final long[][] counts = new long[DEPTH][WIDTH];
+        /**
+         * top-K候选：key -> 估算的采样次数
+         */
+        final Map<String, Long> top = new HashMap<>();
+
+        synchronized void add(String key) {
+            // 1.每行按不同种子哈希，取各行计数的最小值作为估算值
+            long estimate = Long.MAX_VALUE;
+            int h = key.hashCode();
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(h, i);
+                estimate = Math.min(estimate, ++counts[i][index]);
+            }
+            // 2.维护top-K，表满时替换掉估算值最小的key
+            if (top.containsKey(key) || top.size() < topK) {
+                top.put(key, estimate);
+            } else {
+                Map.Entry<String, Long> min = null;
+                for (Map.Entry<String, Long> entry : top.entrySet()) {
+                    if (min == null || entry.getValue() < min.getValue()) {
+                        min = entry;
+                    }
+                }
+                if (min != null && min.getValue() < estimate) {
+                    top.remove(min.getKey());
+                    top.put(key, estimate);
+                }
+            }
+            // 3.达到阈值立即加入热点集合，不等下一次衰减
+            if (estimate / sampleRate >= threshold) {
+                hotKeys.add(key);
+            }
+        }
+
+        synchronized void decay(Set<String> hot) {
+            for (long[] row : counts) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            top.entrySet().removeIf(entry -> {
+                long count = entry.getValue() >> 1;
+                entry.setValue(count);
+                return count == 0;
+            });
+            top.forEach((key, count) -> {
+                if (count / sampleRate >= threshold) {
+                    hot.add(key);
+                }
+            });
+        }
+
+        synchronized List<Map<String, Object>> snapshot() {
+            List<Map<String, Object>> list = new ArrayList<>(top.size());
+            top.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                    .forEach(entry -> {
+                        Map<String, Object> item = new LinkedHashMap<>();
+                        item.put("key", entry.getKey());
+                        item.put("estimate", (long) (entry.getValue() / sampleRate));
+                        item.put("hot", hotKeys.contains(entry.getKey()));
+                        list.add(item);
+                    });
+            return list;
+        }
+    }
+
+    private static int index(int hash, int row) {
+        // 每行不同的种子，再做一次murmur3的fmix混合
+        int h = hash ^ SEEDS[row];
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % WIDTH;
+    }
+
+    /**
+     * 记录一次key访问，按采样率计数
+     */
+    public void record(String key) {
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        sampled.incrementAndGet();
+        String prefix = prefixOf(key);
+        Sketch sketch = sketches.get(prefix);
+        if (sketch == null) {
+            if (sketches.size() >= MAX_PREFIXES) {
+                return;
+            }
+            sketch = sketches.computeIfAbsent(prefix, p -> new Sketch());
+        }
+        sketch.add(key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.contains(key);
+    }
+
+    /**
+     * 计数减半，并按衰减后的计数重新计算热点集合
+     */
+    @Scheduled(fixedDelayString = "${hmdp.hotkey.decay-interval:5000}")
+    public void decay() {
+        Set<String> hot = ConcurrentHashMap.newKeySet();
+        for (Sketch sketch : sketches.values()) {
+            sketch.decay(hot);
+        }
+        hotKeys = hot;
+    }
+
+    /**
+     * @return 各前缀的top-K key及估算的访问次数（已按采样率还原）
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Map<String, Object> prefixes = new LinkedHashMap<>();
+        sketches.forEach((prefix, sketch) -> prefixes.put(prefix, sketch.snapshot()));
+        stats.put("sampled", sampled.get());
+        stats.put("hotKeys", hotKeys);
+        stats.put("prefixes", prefixes);
+        return stats;
+    }
+
+    private static String prefixOf(String key) {
+        int index = key.lastIndexOf(':');
+        return index < 0 ? key : key.substring(0, index + 1);
+    }
+}
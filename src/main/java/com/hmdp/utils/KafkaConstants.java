@@ -3,4 +3,16 @@ package com.hmdp.utils;
 public class KafkaConstants {
     public static final String TOPIC_CREATE_ORDER = "createOrder";
     public static final String TOPIC_SAVE_ORDER_FAILED = "save-order-failed-topic";
+    /**
+     * 落库失败的订单按重试次数依次进入的重试主题，每一级的延迟由 hmdp.order.retry.delays 配置
+     */
+    public static final String TOPIC_CREATE_ORDER_RETRY_1 = "createOrder-retry-1";
+    public static final String TOPIC_CREATE_ORDER_RETRY_2 = "createOrder-retry-2";
+    public static final String TOPIC_CREATE_ORDER_RETRY_3 = "createOrder-retry-3";
+    public static final String[] TOPIC_CREATE_ORDER_RETRIES = {
+            TOPIC_CREATE_ORDER_RETRY_1, TOPIC_CREATE_ORDER_RETRY_2, TOPIC_CREATE_ORDER_RETRY_3};
+
+    public static final String HEADER_ATTEMPT = "order-attempt";
+    public static final String HEADER_DUE_AT = "order-due-at";
+    public static final String HEADER_FAILURE_REASON = "order-failure-reason";
 }
\ No newline at end of file
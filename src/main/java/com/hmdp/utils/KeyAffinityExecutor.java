@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按key固定分配执行线程的线程池：同一个key的任务总在同一条lane上按提交顺序串行执行，不同key之间并行
+ * <p>
+ * 每条lane的队列有界，队列满时提交线程阻塞等待，而不是无限堆积在堆里
+ */
+@Slf4j
+public class KeyAffinityExecutor {
+    private final ThreadPoolExecutor[] lanes;
+
+    public KeyAffinityExecutor(int laneCount) {
+        this(laneCount, Integer.MAX_VALUE);
+    }
+
+    public KeyAffinityExecutor(int laneCount, int laneCapacity) {
+        lanes = new ThreadPoolExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = newBoundedExecutor(1, laneCapacity);
+        }
+    }
+
+    /**
+     * 固定线程数、有界队列的线程池，队列满时阻塞提交线程
+     */
+    public static ThreadPoolExecutor newBoundedExecutor(int threads, int capacity) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                capacity == Integer.MAX_VALUE ? new LinkedBlockingQueue<>() : new ArrayBlockingQueue<>(capacity),
+                (task, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("线程池已关闭");
+                    }
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("等待队列空位时被中断", e);
+                    }
+                });
+    }
+
+    public void execute(Object key, Runnable task) {
+        lanes[Math.floorMod(key.hashCode(), lanes.length)].execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                // 吞掉异常，避免lane线程退出后被重建
+                log.error("任务执行异常，key：{}", key, e);
+            }
+        });
+    }
+
+    /**
+     * @return 所有lane中排队等待执行的任务数
+     */
+    public int queuedCount() {
+        int count = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            count += lane.getQueue().size();
+        }
+        return count;
+    }
+
+    public void shutdown(long timeout, TimeUnit unit) {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            for (ThreadPoolExecutor lane : lanes) {
+                if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    lane.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (ThreadPoolExecutor lane : lanes) {
+                lane.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RedisListenerOverflowEvent;
+import com.hmdp.dto.OrderStatus;
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+
+/**
+ * 节点内订单状态分发
+ * <p>
+ * 整个节点只订阅一次 order:status 频道，收到一批状态后按订单id分发给本节点正在等待的客户端，
+ * 客户端通过SSE或长轮询等待，不会每个客户端占用一个Redis订阅。
+ * 先登记等待再查询当前状态，登记之前已经写入的终态也不会错过。
+ */
+@Slf4j
+@Component
+public class OrderStatusHub {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.order.status.sse-timeout:60000}")
+    private long sseTimeoutMillis;
+    @Value("${hmdp.order.status.poll-timeout:25000}")
+    private long pollTimeoutMillis;
+
+    private final ConcurrentHashMap<Long, CopyOnWriteArrayList<Consumer<OrderStatus>>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                dispatch(new String(message.getBody(), StandardCharsets.UTF_8)), new ChannelTopic(ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 状态消息可能丢失：重新查询本节点正在等待的订单，按收到状态消息的方式分发
+     */
+    @EventListener
+    public void onListenerOverflow(RedisListenerOverflowEvent event) {
+        List<Long> orderIds = new ArrayList<>(waiters.keySet());
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        List<String> codes = stringRedisTemplate.opsForValue().multiGet(orderIds.stream()
+                .map(orderId -> ORDER_STATUS_KEY + orderId).collect(Collectors.toList()));
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < orderIds.size(); i++) {
+            String code = codes == null ? null : codes.get(i);
+            if (code != null) {
+                payload.append(orderIds.get(i)).append(':').append(code).append(',');
+            }
+        }
+        dispatch(payload.toString());
+    }
+
+    /**
+     * @return 订单当前状态，没有记录时返回null
+     */
+    public OrderStatus query(Long orderId) {
+        return OrderStatus.ofCode(stringRedisTemplate.opsForValue().get(ORDER_STATUS_KEY + orderId));
+    }
+
+    /**
+     * SSE推送订单状态，推送终态后结束
+     */
+    public SseEmitter stream(Long orderId) {
+        SseEmitter emitter = new SseEmitter(sseTimeoutMillis);
+        Consumer<OrderStatus> listener = status -> {
+            synchronized (emitter) {
+                try {
+                    emitter.send(SseEmitter.event().name("status").data(status.name()));
+                    if (status.isFinal()) {
+                        emitter.complete();
+                    }
+                } catch (Exception e) {
+                    // 客户端已断开或已推送过终态
+                    emitter.completeWithError(e);
+                }
+            }
+        };
+        register(orderId, listener);
+        emitter.onCompletion(() -> unregister(orderId, listener));
+        emitter.onTimeout(() -> unregister(orderId, listener));
+        OrderStatus current = query(orderId);
+        if (current != null) {
+            listener.accept(current);
+        }
+        return emitter;
+    }
+
+    /**
+     * 长轮询：已是终态立即返回，否则等到终态或超时，超时返回当前状态
+     */
+    public DeferredResult<Result> poll(Long orderId) {
+        DeferredResult<Result> result = new DeferredResult<>(pollTimeoutMillis);
+        Consumer<OrderStatus> listener = status -> {
+            if (status.isFinal()) {
+                result.setResult(Result.ok(status.name()));
+            }
+        };
+        register(orderId, listener);
+        result.onCompletion(() -> unregister(orderId, listener));
+        result.onTimeout(() -> {
+            OrderStatus current = query(orderId);
+            result.setResult(current == null ? Result.fail("订单不存在") : Result.ok(current.name()));
+        });
+        OrderStatus current = query(orderId);
+        if (current != null) {
+            listener.accept(current);
+        }
+        return result;
+    }
+
+    /**
+     * 处理一批状态，格式为 订单id:状态码,订单id:状态码...
+     */
+    private void dispatch(String payload) {
+        for (String item : payload.split(",")) {
+            int i = item.indexOf(':');
+            if (i <= 0) {
+                continue;
+            }
+            Long orderId = Long.valueOf(item.substring(0, i));
+            CopyOnWriteArrayList<Consumer<OrderStatus>> listeners = waiters.get(orderId);
+            OrderStatus status = OrderStatus.ofCode(item.substring(i + 1));
+            if (listeners == null || status == null) {
+                continue;
+            }
+            for (Consumer<OrderStatus> listener : listeners) {
+                try {
+                    listener.accept(status);
+                } catch (Exception e) {
+                    log.error("推送订单状态失败，订单id：{}", orderId, e);
+                }
+            }
+        }
+    }
+
+    private void register(Long orderId, Consumer<OrderStatus> listener) {
+        waiters.compute(orderId, (id, listeners) -> {
+            if (listeners == null) {
+                listeners = new CopyOnWriteArrayList<>();
+            }
+            listeners.add(listener);
+            return listeners;
+        });
+    }
+
+    private void unregister(Long orderId, Consumer<OrderStatus> listener) {
+        waiters.computeIfPresent(orderId, (id, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+}
@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+
+/**
+ * 批量记录订单状态
+ * <p>
+ * 状态先放进本地队列，后台线程定时用一次脚本调用写入一批 order:status:{orderId}，
+ * 并把本批变化合并成一条消息广播到 order:status，由各节点的 {@link OrderStatusHub} 推送给客户端。
+ */
+@Slf4j
+@Component
+public class OrderStatusRecorder {
+    private static final DefaultRedisScript<Long> STATUS_SCRIPT;
+
+    static {
+        STATUS_SCRIPT = new DefaultRedisScript<>();
+        STATUS_SCRIPT.setLocation(new ClassPathResource("order_status.lua"));
+        STATUS_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.order.status.flush-interval:50}")
+    private long flushIntervalMillis;
+    @Value("${hmdp.order.status.batch-size:500}")
+    private int batchSize;
+    @Value("${hmdp.order.status.ttl:3600}")
+    private long ttlSeconds;
+
+    private final ConcurrentLinkedQueue<String[]> pending = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void record(Long orderId, OrderStatus status) {
+        pending.offer(new String[]{orderId.toString(), status.code()});
+    }
+
+    public void record(List<Long> orderIds, OrderStatus status) {
+        for (Long orderId : orderIds) {
+            record(orderId, status);
+        }
+    }
+
+    private void flush() {
+        try {
+            List<String> args = new ArrayList<>(batchSize * 2 + 2);
+            String[] entry;
+            while ((entry = pending.poll()) != null) {
+                if (args.isEmpty()) {
+                    args.add(String.valueOf(ttlSeconds));
+                    args.add(ORDER_STATUS_CHANNEL);
+                }
+                args.add(entry[0]);
+                args.add(entry[1]);
+                if (args.size() >= batchSize * 2 + 2) {
+                    write(args);
+                    args.clear();
+                }
+            }
+            if (!args.isEmpty()) {
+                write(args);
+            }
+        } catch (Exception e) {
+            // 状态只用于通知客户端，写失败不重试，客户端超时后会重新查询
+            log.error("写入订单状态失败", e);
+        }
+    }
+
+    private void write(List<String> args) {
+        stringRedisTemplate.execute(STATUS_SCRIPT, Collections.emptyList(), args.toArray());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        flush();
+    }
+}
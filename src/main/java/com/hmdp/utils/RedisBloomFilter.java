@@ -0,0 +1,253 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RedisListenerOverflowEvent;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+import static com.hmdp.utils.RedisConstants.BLOOM_REBUILT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOOM_KEY;
+
+/**
+ * 一类实体id的布隆过滤器，判断id“一定不存在”时不用再访问Redis和数据库
+ * <p>
+ * 位数组在本地保存一份，同时镜像在Redis位图 bloom:{name} 中，位的顺序与SETBIT一致。
+ * 启动时优先加载Redis位图，没有或大小不符时按id升序分批扫描全表构建。
+ * 新增实体时SETBIT并通过 bloom:add:{name} 广播，各节点设置本地位。
+ * 定时重建（只有拿到锁的节点重建，其他节点重新加载）去掉已删除id留下的位，把误判率拉回设计值：
+ * 在临时key上构建完成后RENAME替换，再补上构建期间新增的id，然后通过 bloom:rebuilt:{name} 通知各节点重新加载。
+ */
+@Slf4j
+public class RedisBloomFilter {
+    private static final long REBUILD_LOCK_MINUTES = 10;
+
+    @Getter
+    private final String name;
+    /**
+     * 被保护的缓存key前缀
+     */
+    @Getter
+    private final String keyPrefix;
+    private final int bitSize;
+    private final int hashes;
+    /**
+     * 按id升序分页查询：参数为上一批最后一个id，返回之后的一批id，没有更多时返回空列表
+     */
+    private final Function<Long, List<Long>> idLoader;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    private final byte[] rawKey;
+
+    private volatile byte[] bits;
+    private volatile long lastBuiltAt;
+    private volatile long lastBuiltCount;
+
+    /**
+     * @param expectedInsertions 预计的id数量
+     * @param fpp 期望的误判率
+     */
+    public RedisBloomFilter(String name, String keyPrefix, long expectedInsertions, double fpp,
+                            Function<Long, List<Long>> idLoader, StringRedisTemplate stringRedisTemplate,
+                            RedisMessageListenerContainer redisMessageListenerContainer) {
+        this.name = name;
+        this.keyPrefix = keyPrefix;
+        // 最优位数 m = -n·ln(p) / (ln2)^2，哈希函数个数 k = m/n·ln2，位数按字节对齐
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bitSize = (int) Math.min(Integer.MAX_VALUE - 7, (m + 7) / 8 * 8);
+        this.hashes = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * Math.log(2)));
+        this.idLoader = idLoader;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = BLOOM_KEY + name;
+        this.rawKey = key.getBytes(StandardCharsets.UTF_8);
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                        setLocal(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(BLOOM_ADD_CHANNEL + name));
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> load(),
+                new ChannelTopic(BLOOM_REBUILT_CHANNEL + name));
+    }
+
+    /**
+     * 新增id的广播可能丢失：重新加载Redis位图，本地缺位会把存在的id误判为不存在
+     */
+    @EventListener
+    public void onListenerOverflow(RedisListenerOverflowEvent event) {
+        try {
+            load();
+        } catch (Exception e) {
+            log.error("重新加载布隆过滤器{}失败", name, e);
+        }
+    }
+
+    /**
+     * 启动时加载Redis位图，没有则构建
+     */
+    public void init() {
+        try {
+            if (!load()) {
+                rebuild();
+            }
+        } catch (Exception e) {
+            // 构建失败时过滤器不生效，查询照常访问Redis和数据库
+            log.error("初始化布隆过滤器{}失败", name, e);
+        }
+    }
+
+    /**
+     * @return id可能存在返回true；过滤器尚未就绪时一律返回true
+     */
+    public boolean mightContain(long id) {
+        byte[] current = bits;
+        if (current == null) {
+            return true;
+        }
+        for (int offset : offsets(id)) {
+            if ((current[offset >>> 3] & (0x80 >>> (offset & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增实体后调用：写入Redis位图并通知各节点
+     */
+    public void add(long id) {
+        setLocal(id);
+        int[] offsets = offsets(id);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL + name, String.valueOf(id));
+    }
+
+    /**
+     * 定时重建：拿到锁的节点从数据库重建，其他节点从Redis重新加载，顺带补上错过的新增广播
+     */
+    public void refresh() {
+        String lockKey = LOCK_BLOOM_KEY + name;
+        Boolean locked = stringRedisTemplate.opsForValue()
+                .setIfAbsent(lockKey, "1", REBUILD_LOCK_MINUTES, TimeUnit.MINUTES);
+        if (!Boolean.TRUE.equals(locked)) {
+            load();
+            return;
+        }
+        try {
+            rebuild();
+        } finally {
+            stringRedisTemplate.delete(lockKey);
+        }
+    }
+
+    /**
+     * 从Redis加载位图替换本地位数组
+     * @return Redis中没有位图或大小与配置不符时返回false
+     */
+    private boolean load() {
+        byte[] loaded = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (loaded == null || loaded.length != bitSize / 8) {
+            return false;
+        }
+        bits = loaded;
+        return true;
+    }
+
+    private void rebuild() {
+        long begin = System.currentTimeMillis();
+        // 1.按id升序分批扫描，在本地构建新的位数组
+        byte[] built = new byte[bitSize / 8];
+        long count = 0;
+        long lastId = 0;
+        List<Long> ids;
+        while (!(ids = idLoader.apply(lastId)).isEmpty()) {
+            for (Long id : ids) {
+                for (int offset : offsets(id)) {
+                    built[offset >>> 3] |= (byte) (0x80 >>> (offset & 7));
+                }
+            }
+            count += ids.size();
+            lastId = ids.get(ids.size() - 1);
+        }
+        // 2.写入临时key后RENAME，读方不会看到构建到一半的位图
+        byte[] tmpKey = (key + ":tmp").getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey, built);
+            connection.rename(tmpKey, rawKey);
+            return null;
+        });
+        bits = built;
+        // 3.补上扫描之后新增的id，它们的SETBIT可能落在了被替换掉的旧位图上
+        while (!(ids = idLoader.apply(lastId)).isEmpty()) {
+            for (Long id : ids) {
+                add(id);
+            }
+            count += ids.size();
+            lastId = ids.get(ids.size() - 1);
+        }
+        lastBuiltAt = System.currentTimeMillis();
+        lastBuiltCount = count;
+        stringRedisTemplate.convertAndSend(BLOOM_REBUILT_CHANNEL + name, String.valueOf(count));
+        log.info("布隆过滤器{}重建完成，id数量：{}，耗时：{}ms", name, count, lastBuiltAt - begin);
+    }
+
+    private synchronized void setLocal(long id) {
+        byte[] current = bits;
+        if (current == null) {
+            return;
+        }
+        for (int offset : offsets(id)) {
+            current[offset >>> 3] |= (byte) (0x80 >>> (offset & 7));
+        }
+    }
+
+    /**
+     * 一次64位哈希拆成两个32位值，按 h1 + i·h2 组合出k个位置
+     */
+    private int[] offsets(long id) {
+        long hash = id;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int[] offsets = new int[hashes];
+        for (int i = 0; i < hashes; i++) {
+            int combined = h1 + (i + 1) * h2;
+            if (combined < 0) {
+                combined = ~combined;
+            }
+            offsets[i] = combined % bitSize;
+        }
+        return offsets;
+    }
+
+    /**
+     * @return 位数、哈希函数个数、是否就绪、上次在本节点重建的时间和id数量
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("bits", bitSize);
+        stats.put("hashes", hashes);
+        stats.put("ready", bits != null);
+        stats.put("lastBuiltAt", lastBuiltAt);
+        stats.put("lastBuiltCount", lastBuiltCount);
+        return stats;
+    }
+}
@@ -10,11 +10,37 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add:";
+    public static final String BLOOM_REBUILT_CHANNEL = "bloom:rebuilt:";
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASED_KEY = "seckill:leased:";
+    public static final String SECKILL_LEASE_NODE_KEY = "seckill:lease:node:";
+    public static final String SECKILL_COMPENSATED_KEY = "seckill:compensated:";
+    public static final String SECKILL_ROOM_KEY = "seckill:room:";
+    public static final String SECKILL_ROOM_QUEUE_KEY = "seckill:room:queue:";
+    public static final String SECKILL_ROOM_STATE_KEY = "seckill:room:state:";
+    public static final String SECKILL_CATALOG_CHANNEL = "seckill:catalog";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
+    public static final String ORDER_STREAM_KEY = "stream.orders";
+    public static final String ORDER_STREAM_GROUP = "g1";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
+    public static final String SECKILL_RESTOCK_GEN_KEY = "seckill:restock:gen:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,31 +1,198 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     private static final short COUNT_BITS = 32;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
     private static final long BEGIN_TIMESTAMP = 1640995200L;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * incr：每个id一次INCR；segment：一次INCRBY租用一段序列号，本地发号
+     */
+    @Value("${hmdp.id.mode:incr}")
+    private String mode;
+    @Value("${hmdp.id.segment-size:1000}")
+    private int segmentSize;
+    /**
+     * 当前号段用掉该百分比后，后台预取下一号段
+     */
+    @Value("${hmdp.id.prefetch-percent:80}")
+    private int prefetchPercent;
 
-    public long nextId(String keyPrefix){
+    private final ConcurrentHashMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final AtomicLong lastSecond = new AtomicLong();
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+
+    public long nextId(String keyPrefix) {
+        return "segment".equals(mode) ? nextSegmentId(keyPrefix) : nextIncrId(keyPrefix);
+    }
+
+    /**
+     * 异步生成id：incr模式通过响应式INCR在Lettuce回调中完成；segment模式直接在本地号段发号，
+     * 只有号段用完且预取未完成时才会同步访问Redis
+     */
+    public CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        if ("segment".equals(mode)) {
+            return CompletableFuture.completedFuture(nextSegmentId(keyPrefix));
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        String date = now.format(DATE_FORMATTER);
+        return reactiveStringRedisTemplate.opsForValue()
+                .increment("icr:" + keyPrefix + ":" + date)
+                .map(count -> timestamp << COUNT_BITS | count)
+                .toFuture();
+    }
+
+    /**
+     * 每个id一次 INCR icr:{prefix}:{yyyy:MM:dd}
+     */
+    public long nextIncrId(String keyPrefix){
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
         // 2.生成序列号
         // 2.1.获取当天日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2.自增长
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
         // 3.拼接返回
         return timestamp << COUNT_BITS | count;
     }
+
+    /**
+     * 从本地号段发号，id布局与 {@link #nextIncrId(String)} 相同：timestamp << 32 | 序列号
+     * <p>
+     * 号段通过 INCRBY icr:{prefix}:{yyyy:MM:dd} segmentSize 租用，各节点的号段互不重叠；
+     * 日期变化时立即丢弃旧号段，改用新日期key的号段，保证同一秒内不会出现重复的序列号。
+     */
+    public long nextSegmentId(String keyPrefix) {
+        // 1.生成时间戳，时钟回拨时沿用上一次的秒数，保证本节点单调
+        long nowSecond = currentSecond();
+        long epochDay = Math.floorDiv(nowSecond, SECONDS_PER_DAY);
+        // 2.从号段取序列号
+        long count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(epochDay);
+        // 3.拼接返回
+        return (nowSecond - BEGIN_TIMESTAMP) << COUNT_BITS | count;
+    }
+
+    /**
+     * 与 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) 等价，但不创建对象
+     */
+    private long currentSecond() {
+        long millis = System.currentTimeMillis();
+        long second = (millis + TimeZone.getDefault().getOffset(millis)) / 1000;
+        return lastSecond.accumulateAndGet(second, Math::max);
+    }
+
+    private Segment fetchSegment(String keyPrefix, long epochDay) {
+        String date = LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER);
+        long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentSize);
+        long start = end - segmentSize + 1;
+        return new Segment(epochDay, start, end, start + (long) segmentSize * prefetchPercent / 100);
+    }
+
+    private static class Segment {
+        private final long epochDay;
+        private final AtomicLong cursor;
+        private final long end;
+        private final long prefetchAt;
+
+        private Segment(long epochDay, long start, long end, long prefetchAt) {
+            this.epochDay = epochDay;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 一个前缀的双号段：当前号段无锁发号，用到prefetchAt时后台预取下一号段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> next;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(long epochDay) {
+            while (true) {
+                Segment segment = current;
+                if (segment == null || segment.epochDay != epochDay) {
+                    switchSegment(segment, epochDay);
+                    continue;
+                }
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.end) {
+                    if (count == segment.prefetchAt) {
+                        prefetch(epochDay);
+                    }
+                    return count;
+                }
+                // 号段用完，切换到下一号段
+                switchSegment(segment, epochDay);
+            }
+        }
+
+        private synchronized void prefetch(long epochDay) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> fetchSegment(keyPrefix, epochDay), prefetchExecutor);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, long epochDay) {
+            if (current != exhausted) {
+                // 其他线程已经切换过了
+                return;
+            }
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.join();
+                } catch (Exception e) {
+                    log.error("预取号段失败，同步获取", e);
+                }
+                next = null;
+            }
+            // 跨天的预取号段属于前一天的key，不能再用
+            if (segment == null || segment.epochDay != epochDay) {
+                segment = fetchSegment(keyPrefix, epochDay);
+            }
+            current = segment;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+    }
 }
@@ -0,0 +1,108 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderStatus;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_COMPENSATED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 订单最终落库失败时的补偿：秒杀脚本已经扣了Redis库存、记了用户已购数量，用户也已收到抢购成功，
+ * 订单没能落库时把这两样还回去，并记录失败状态。
+ * 脚本放行后生成订单id或入队失败、用户收到的是失败时，同样把库存和已购数量还回去
+ */
+@Slf4j
+@Component
+public class SeckillOrderCompensator {
+    private static final DefaultRedisScript<Long> COMPENSATE_SCRIPT;
+
+    static {
+        COMPENSATE_SCRIPT = new DefaultRedisScript<>();
+        COMPENSATE_SCRIPT.setLocation(new ClassPathResource("seckill_compensate.lua"));
+        COMPENSATE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private OrderStatusRecorder orderStatusRecorder;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    /**
+     * 补偿标记的保留时间，秒，覆盖死信可能重复投递的时间范围
+     */
+    @Value("${hmdp.order.retry.compensated-ttl:604800}")
+    private long compensatedTtl;
+
+    /**
+     * @param reason 失败原因，只用于日志
+     * @return 本次是否执行了补偿，同一订单已经补偿过返回false
+     */
+    public boolean compensate(VoucherOrder voucherOrder, String reason) {
+        Long voucherId = voucherOrder.getVoucherId();
+        Long userId = voucherOrder.getUserId();
+        int quantity = voucherOrder.getQuantity() == null ? 1 : voucherOrder.getQuantity();
+        // 1.归还库存、扣回已购数量，以订单id做补偿标记
+        boolean compensated = execute(voucherId, userId, quantity, voucherOrder.getId());
+        if (compensated) {
+            log.warn("订单{}最终失败，已归还库存{}件，原因：{}", voucherOrder.getId(), quantity, reason);
+        }
+        // 2.记录失败状态
+        orderStatusRecorder.record(voucherOrder.getId(), OrderStatus.FAILED);
+        return compensated;
+    }
+
+    /**
+     * 脚本已放行但订单没有入队：还没有订单id，也不会有死信重复投递，不写补偿标记
+     * @param reason 失败原因，只用于日志
+     */
+    public void rollback(Long voucherId, Long userId, int quantity, String reason) {
+        execute(voucherId, userId, quantity, null);
+        log.warn("优惠券{}用户{}秒杀放行后入队失败，已归还库存{}件，原因：{}", voucherId, userId, quantity, reason);
+    }
+
+    /**
+     * @param orderId 补偿标记使用的订单id，为null时不做去重
+     */
+    private boolean execute(Long voucherId, Long userId, int quantity, Long orderId) {
+        // 1.分片券补偿到用户所属分片，标记key与分片同一个hash tag
+        int shards = seckillStockShards.shardCount(voucherId);
+        List<String> keys;
+        if (shards > 1) {
+            int home = SeckillStockShards.homeShard(userId, shards);
+            keys = new ArrayList<>(Arrays.asList(SeckillStockShards.stockKey(voucherId, home),
+                    SeckillStockShards.orderKey(voucherId, home)));
+            if (orderId != null) {
+                keys.add(SECKILL_COMPENSATED_KEY + "{" + voucherId + ":" + home + "}:" + orderId);
+            }
+        } else {
+            keys = new ArrayList<>(Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId));
+            if (orderId != null) {
+                keys.add(SECKILL_COMPENSATED_KEY + orderId);
+            }
+        }
+        // 2.归还库存、扣回已购数量，推进补货代数清除各节点的售罄标记
+        Long result = stringRedisTemplate.execute(COMPENSATE_SCRIPT, keys,
+                userId.toString(), String.valueOf(quantity), String.valueOf(compensatedTtl));
+        boolean compensated = result != null && result == 1L;
+        if (compensated) {
+            soldOutRegistry.publishRestock(voucherId);
+        }
+        return compensated;
+    }
+}
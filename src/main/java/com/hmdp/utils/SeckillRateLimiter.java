@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀准入限流
+ * <p>
+ * 本地预过滤：每张券一个令牌桶限制单节点放行速率，每个用户每张券一个令牌桶拦截脚本刷单，
+ * 用户桶放在LRU缓存中，内存有上限；
+ * 跨节点：秒杀脚本在扣库存之前按用户做滑动窗口计数（当前窗口计数加上一窗口按剩余比例折算），
+ * 换节点重试的请求也会被拦下。
+ */
+@Component
+public class SeckillRateLimiter {
+    @Value("${hmdp.seckill.limit.voucher-rate:2000}")
+    private double voucherRate;
+    @Value("${hmdp.seckill.limit.voucher-burst:4000}")
+    private double voucherBurst;
+    @Value("${hmdp.seckill.limit.user-rate:1}")
+    private double userRate;
+    @Value("${hmdp.seckill.limit.user-burst:3}")
+    private double userBurst;
+    @Value("${hmdp.seckill.limit.user-cache-size:100000}")
+    private int userCacheSize;
+    @Getter
+    @Value("${hmdp.seckill.limit.redis-window:1000}")
+    private long redisWindowMillis;
+    @Getter
+    @Value("${hmdp.seckill.limit.redis-limit:5}")
+    private int redisLimit;
+
+    private final ConcurrentHashMap<Long, TokenBucket> voucherBuckets = new ConcurrentHashMap<>();
+    private LRUCache<String, TokenBucket> userBuckets;
+    private final ConcurrentHashMap<Long, Counters> counters = new ConcurrentHashMap<>();
+
+    private static class Counters {
+        final LongAdder admitted = new LongAdder();
+        final LongAdder shedVoucher = new LongAdder();
+        final LongAdder shedUser = new LongAdder();
+        final LongAdder shedRedis = new LongAdder();
+    }
+
+    @PostConstruct
+    private void init() {
+        userBuckets = CacheUtil.newLRUCache(userCacheSize);
+    }
+
+    /**
+     * 本地预过滤
+     * @return 是否放行
+     */
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        Counters c = counters(voucherId);
+        // 1.用户桶，先拦刷单，不占用券的名额
+        if (userRate > 0) {
+            TokenBucket userBucket = userBuckets.get(voucherId + ":" + userId,
+                    () -> new TokenBucket(userRate, userBurst));
+            if (!userBucket.tryAcquire()) {
+                c.shedUser.increment();
+                return false;
+            }
+        }
+        // 2.券桶
+        if (voucherRate > 0) {
+            TokenBucket voucherBucket = voucherBuckets.computeIfAbsent(voucherId,
+                    id -> new TokenBucket(voucherRate, voucherBurst));
+            if (!voucherBucket.tryAcquire()) {
+                c.shedVoucher.increment();
+                return false;
+            }
+        }
+        c.admitted.increment();
+        return true;
+    }
+
+    /**
+     * 记录被秒杀脚本内滑动窗口拦下的请求
+     */
+    public void recordRedisShed(Long voucherId) {
+        counters(voucherId).shedRedis.increment();
+    }
+
+    /**
+     * @return 各券放行、拦截的请求数
+     */
+    public Map<Long, Map<String, Long>> stats() {
+        Map<Long, Map<String, Long>> stats = new LinkedHashMap<>();
+        counters.forEach((voucherId, c) -> {
+            Map<String, Long> m = new LinkedHashMap<>();
+            m.put("admitted", c.admitted.sum());
+            m.put("shedVoucher", c.shedVoucher.sum());
+            m.put("shedUser", c.shedUser.sum());
+            m.put("shedRedis", c.shedRedis.sum());
+            stats.put(voucherId, m);
+        });
+        return stats;
+    }
+
+    private Counters counters(Long voucherId) {
+        return counters.computeIfAbsent(voucherId, id -> new Counters());
+    }
+}
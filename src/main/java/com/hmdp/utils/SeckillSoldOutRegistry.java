@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RedisListenerOverflowEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_GEN_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记，售罄后的秒杀请求直接在JVM内拒绝，不再访问Redis
+ * <p>
+ * 每次补货在 seckill:restock:gen:{id} 上推进补货代数，消息内容为 voucherId:代数。
+ * seckill.lua 在库存扣到0时带上当前代数向 seckill:soldout 广播，补货方先加库存再推进代数，然后向 seckill:restock 广播。
+ * 节点只接受不早于本地代数的售罄消息和晚于本地代数的补货消息，消息乱序或丢失时不会把已补货的券一直标记为售罄。
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final ConcurrentHashMap<Long, State> states = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                markSoldOut(parseVoucherId(message.getBody()), parseGeneration(message.getBody()), true),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                clearSoldOut(parseVoucherId(message.getBody()), parseGeneration(message.getBody())),
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    /**
+     * 补货消息可能丢失：按Redis中的补货代数清除已经作废的售罄标记
+     */
+    @EventListener
+    public void onListenerOverflow(RedisListenerOverflowEvent event) {
+        List<Long> voucherIds = new ArrayList<>();
+        states.forEach((voucherId, state) -> {
+            if (state.soldOut) {
+                voucherIds.add(voucherId);
+            }
+        });
+        if (voucherIds.isEmpty()) {
+            return;
+        }
+        List<String> generations = stringRedisTemplate.opsForValue().multiGet(voucherIds.stream()
+                .map(voucherId -> SECKILL_RESTOCK_GEN_KEY + voucherId).collect(Collectors.toList()));
+        for (int i = 0; i < voucherIds.size(); i++) {
+            String generation = generations == null ? null : generations.get(i);
+            if (generation != null) {
+                clearSoldOut(voucherIds.get(i), Long.parseLong(generation));
+            }
+        }
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        State state = states.get(voucherId);
+        return state != null && state.soldOut;
+    }
+
+    /**
+     * 当前补货代数，执行脚本前读取，用于判断脚本返回的"库存不足"是否已被补货作废
+     */
+    public long generation(Long voucherId) {
+        State state = states.get(voucherId);
+        return state == null ? 0 : state.generation;
+    }
+
+    /**
+     * 本节点脚本返回库存不足，只有期间没有补货才标记
+     */
+    public void markSoldOut(Long voucherId, long generation) {
+        markSoldOut(voucherId, generation, false);
+    }
+
+    /**
+     * @param advance 售罄消息的代数可能领先本地（错过了补货消息），领先时同步本地代数
+     */
+    private void markSoldOut(Long voucherId, long generation, boolean advance) {
+        states.compute(voucherId, (id, state) -> {
+            long current = state == null ? 0 : state.generation;
+            if (current == generation || advance && generation > current) {
+                return new State(generation, true);
+            }
+            return state;
+        });
+    }
+
+    /**
+     * 补货消息，代数晚于本地时清除售罄标记；重复或过时的消息忽略
+     */
+    public void clearSoldOut(Long voucherId, long generation) {
+        states.compute(voucherId, (id, state) -> {
+            long current = state == null ? 0 : state.generation;
+            return generation > current ? new State(generation, false) : state;
+        });
+        log.debug("优惠券{}已补货，代数：{}", voucherId, generation);
+    }
+
+    /**
+     * 库存增加后调用：推进补货代数并广播，必须在库存写入Redis之后调用
+     */
+    public void publishRestock(Long voucherId) {
+        Long generation = stringRedisTemplate.opsForValue().increment(SECKILL_RESTOCK_GEN_KEY + voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId + ":" + generation);
+    }
+
+    /**
+     * 解析售罄、补货消息中的券id，消息内容为 voucherId:代数
+     */
+    public static Long parseVoucherId(byte[] body) {
+        String text = new String(body, StandardCharsets.UTF_8);
+        int index = text.indexOf(':');
+        return Long.valueOf(index < 0 ? text : text.substring(0, index));
+    }
+
+    private static long parseGeneration(byte[] body) {
+        String text = new String(body, StandardCharsets.UTF_8);
+        int index = text.indexOf(':');
+        return index < 0 ? 0 : Long.parseLong(text.substring(index + 1));
+    }
+
+    private static class State {
+        private final long generation;
+        private final boolean soldOut;
+
+        private State(long generation, boolean soldOut) {
+            this.generation = generation;
+            this.soldOut = soldOut;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.config.RedisListenerOverflowEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_NODE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 节点本地库存租约：极热点券的每个秒杀请求不再访问同一个库存key
+ * <p>
+ * 节点一次从 seckill:stock:{id} 租用一块库存记到本节点名下（seckill:leased:{id} 中nodeId -> 未用完的数量），
+ * 之后在本地原子计数器上扣减放行；库存 + 各节点租约 始终等于未售出的数量，总库存不会超卖。
+ * 限购仍以Redis订单hash为准：放行的请求进入队列，由一个线程把积压的请求合并成一次脚本调用批量判断，
+ * 没通过的请求把库存还给本地计数器。秒杀结束后、节点关闭时把本地剩余的库存归还Redis；
+ * 秒杀进行中，一段时间没有流量或持有过久的租约也归还Redis，库存流向仍有流量的节点。
+ * Redis库存租完但其他节点还有未用完的租约时，请求返回8（稍后再试），不标记售罄、不关闭等候室。
+ * <p>
+ * 节点存活期间定时续期 seckill:lease:node:{nodeId}，过期的节点（宕机或停顿超过node-ttl）名下的租约由其他节点
+ * 收回Redis库存；确认脚本在存活key过期后整批拒绝，收回之后不会再从这份租约中卖出。
+ * 停顿后发现自己已过期的节点换一个nodeId重新登记，旧租约的本地库存作废。
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Value("${hmdp.seckill.lease.batch-size:200}")
+    private int batchSize;
+    @Value("${hmdp.seckill.lease.idle-timeout:3000}")
+    private long idleTimeout;
+    @Value("${hmdp.seckill.lease.max-age:30000}")
+    private long maxAge;
+    @Value("${hmdp.seckill.lease.retry-interval:200}")
+    private long retryInterval;
+    @Value("${hmdp.seckill.lease.node-ttl:10000}")
+    private long nodeTtl;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> COMMIT_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+    private static final DefaultRedisScript<Long> RECLAIM_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        COMMIT_SCRIPT = new DefaultRedisScript<>();
+        COMMIT_SCRIPT.setLocation(new ClassPathResource("seckill_lease_commit.lua"));
+        COMMIT_SCRIPT.setResultType(List.class);
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_lease_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+        RECLAIM_SCRIPT = new DefaultRedisScript<>();
+        RECLAIM_SCRIPT.setLocation(new ClassPathResource("seckill_lease_reclaim.lua"));
+        RECLAIM_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 本节点id，新建的租约记在这个id名下；存活key过期后更换
+     */
+    private volatile String nodeId = UUID.randomUUID().toString(true);
+    private final ConcurrentHashMap<Long, Lease> leases = new ConcurrentHashMap<>();
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final LongAdder commitCalls = new LongAdder();
+    private final LongAdder committedRequests = new LongAdder();
+    private Thread committer;
+    private volatile boolean running = true;
+
+    private static final class Lease {
+        final Long voucherId;
+        final long endMillis;
+        /**
+         * 租约所属的nodeId，租用、确认、归还都记在这个id名下
+         */
+        final String owner;
+        final AtomicInteger local = new AtomicInteger();
+        /**
+         * Redis库存已耗尽，补货前不再去租
+         */
+        volatile boolean exhausted;
+        /**
+         * 库存耗尽时其他节点还有未用完的租约，retryAt之后再去租一次
+         */
+        volatile boolean othersHold;
+        volatile long retryAt;
+        /**
+         * 最近一次租到库存、最近一次本地放行的时间，用于归还空闲或过久的租约
+         */
+        volatile long leasedAt;
+        volatile long lastTakenAt;
+
+        Lease(Long voucherId, long endMillis, String owner) {
+            this.voucherId = voucherId;
+            this.endMillis = endMillis;
+            this.owner = owner;
+        }
+
+        boolean tryTake(int quantity) {
+            while (true) {
+                int current = local.get();
+                if (current < quantity) {
+                    return false;
+                }
+                if (local.compareAndSet(current, current - quantity)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static final class Pending {
+        final Lease lease;
+        final Long userId;
+        final int quantity;
+        final int userLimit;
+        final long beginMillis;
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        Pending(Lease lease, Long userId, int quantity, int userLimit, long beginMillis) {
+            this.lease = lease;
+            this.userId = userId;
+            this.quantity = quantity;
+            this.userLimit = userLimit;
+            this.beginMillis = beginMillis;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Lease lease = leases.get(SeckillSoldOutRegistry.parseVoucherId(message.getBody()));
+            if (lease != null) {
+                lease.exhausted = false;
+            }
+        }, new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+        stringRedisTemplate.opsForValue().set(nodeKey(nodeId), "1", nodeTtl, TimeUnit.MILLISECONDS);
+        committer = new Thread(this::commitLoop, "seckill-lease-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * 补货消息可能丢失：所有租约都允许重新向Redis租用，没有库存时再标记
+     */
+    @EventListener
+    public void onListenerOverflow(RedisListenerOverflowEvent event) {
+        leases.values().forEach(lease -> lease.exhausted = false);
+    }
+
+    public static String leasedKey(Long voucherId) {
+        return SECKILL_LEASED_KEY + voucherId;
+    }
+
+    private static String nodeKey(String nodeId) {
+        return SECKILL_LEASE_NODE_KEY + nodeId;
+    }
+
+    /**
+     * 租约模式秒杀：本地扣减库存，再批量到Redis判断限购
+     * @param block 一次租用的库存数量
+     * @return 0：成功；1：库存不足；2：超过限购；3：尚未开始；4：已经结束；7：还有库存，但不够本次购买数量；
+     * 8：Redis库存已租完，其他节点还有未用完的租约，或本节点的租约已失效
+     */
+    public CompletableFuture<Integer> seckill(Long voucherId, Long userId, int quantity, int userLimit, int block,
+                                              long beginMillis, long endMillis) {
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease(id, endMillis, nodeId));
+        // 1.本地扣减，不够再去Redis租一块
+        int r = take(lease, quantity, block);
+        if (r != 0) {
+            return CompletableFuture.completedFuture(r);
+        }
+        // 2.进入批量确认队列
+        Pending pending = new Pending(lease, userId, quantity, userLimit, beginMillis);
+        if (!running) {
+            lease.local.addAndGet(quantity);
+            return CompletableFuture.completedFuture(4);
+        }
+        queue.add(pending);
+        return pending.future;
+    }
+
+    private int take(Lease lease, int quantity, int block) {
+        if (lease.tryTake(quantity)) {
+            lease.lastTakenAt = System.currentTimeMillis();
+            return 0;
+        }
+        // 同一张券同时只有一个线程去租
+        synchronized (lease) {
+            while (true) {
+                if (lease.tryTake(quantity)) {
+                    lease.lastTakenAt = System.currentTimeMillis();
+                    return 0;
+                }
+                long now = System.currentTimeMillis();
+                if (lease.exhausted && !(lease.othersHold && now >= lease.retryAt)) {
+                    // 本地还有库存只是不够本次数量返回7；其他节点还有租约返回8，都没有才是售罄
+                    return lease.local.get() > 0 ? 7 : lease.othersHold ? 8 : 1;
+                }
+                Long granted = stringRedisTemplate.execute(LEASE_SCRIPT,
+                        Arrays.asList(SECKILL_STOCK_KEY + lease.voucherId, leasedKey(lease.voucherId)),
+                        lease.owner, String.valueOf(Math.max(block, quantity)));
+                if (granted == null || granted <= 0) {
+                    // 返回值为负数表示各节点手里还有的租约数量
+                    lease.exhausted = true;
+                    lease.othersHold = granted != null && granted < 0;
+                    lease.retryAt = now + retryInterval;
+                    continue;
+                }
+                lease.exhausted = false;
+                lease.othersHold = false;
+                lease.leasedAt = now;
+                lease.local.addAndGet(granted.intValue());
+            }
+        }
+    }
+
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                // 1.阻塞等第一个请求，再取走积压的请求，负载越高一批越大
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                // 2.按券分组，每张券一次脚本调用
+                Map<Lease, List<Pending>> byVoucher = new LinkedHashMap<>();
+                for (Pending pending : batch) {
+                    byVoucher.computeIfAbsent(pending.lease, l -> new ArrayList<>()).add(pending);
+                }
+                for (Map.Entry<Lease, List<Pending>> entry : byVoucher.entrySet()) {
+                    commit(entry.getKey(), entry.getValue());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(Lease lease, List<Pending> pendings) {
+        Pending head = pendings.get(0);
+        List<String> args = new ArrayList<>(4 + pendings.size() * 2);
+        args.add(lease.owner);
+        args.add(String.valueOf(head.beginMillis));
+        args.add(String.valueOf(lease.endMillis));
+        args.add(String.valueOf(head.userLimit));
+        for (Pending pending : pendings) {
+            args.add(pending.userId.toString());
+            args.add(String.valueOf(pending.quantity));
+        }
+        List<?> results;
+        try {
+            results = stringRedisTemplate.execute(COMMIT_SCRIPT,
+                    Arrays.asList(SECKILL_ORDER_KEY + lease.voucherId, leasedKey(lease.voucherId), nodeKey(lease.owner)),
+                    args.toArray());
+        } catch (Exception e) {
+            // 脚本没有执行成功，库存还给本地计数器
+            log.error("批量确认租约秒杀失败，优惠券id：{}", lease.voucherId, e);
+            for (Pending pending : pendings) {
+                lease.local.addAndGet(pending.quantity);
+                pending.future.completeExceptionally(e);
+            }
+            return;
+        }
+        commitCalls.increment();
+        committedRequests.add(pendings.size());
+        for (int i = 0; i < pendings.size(); i++) {
+            Pending pending = pendings.get(i);
+            int r = results == null ? 4 : ((Number) results.get(i)).intValue();
+            if (r != 0 && r != 8) {
+                // 没通过限购或时间窗口，库存还给本地计数器；返回8时租约已失效，库存已被收回，不再放回
+                lease.local.addAndGet(pending.quantity);
+            }
+            pending.future.complete(r);
+        }
+    }
+
+    /**
+     * 秒杀结束的券归还本地剩余库存，确认中被拒绝的请求归还的库存在下一轮一并归还；
+     * 秒杀进行中，空闲超过idle-timeout或租用超过max-age的租约也归还，让库存流向仍有流量的节点
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.lease.sweep-interval:1000}")
+    public void sweep() {
+        renew();
+        long now = System.currentTimeMillis();
+        for (Lease lease : leases.values()) {
+            if (now > lease.endMillis
+                    || now - lease.lastTakenAt > idleTimeout
+                    || now - lease.leasedAt > maxAge) {
+                returnLocal(lease);
+            }
+            // 其他节点还有租约时，检查是否有已失效的节点
+            if (lease.othersHold) {
+                reclaimExpired(lease.voucherId);
+            }
+        }
+    }
+
+    /**
+     * 续期本节点的存活key；已经过期时租约可能已被其他节点收回，换一个nodeId重新登记，丢弃旧租约
+     */
+    private void renew() {
+        try {
+            Boolean alive = stringRedisTemplate.opsForValue()
+                    .setIfPresent(nodeKey(nodeId), "1", nodeTtl, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(alive)) {
+                return;
+            }
+            String expired = nodeId;
+            String renewed = UUID.randomUUID().toString(true);
+            stringRedisTemplate.opsForValue().set(nodeKey(renewed), "1", nodeTtl, TimeUnit.MILLISECONDS);
+            nodeId = renewed;
+            // 旧租约的确认都会被拒绝，本地剩余库存由其他节点（或本节点）收回
+            leases.clear();
+            log.warn("租约节点{}已过期，更换为{}，旧租约作废", expired, renewed);
+        } catch (Exception e) {
+            log.error("续期租约节点{}失败", nodeId, e);
+        }
+    }
+
+    /**
+     * 把存活key已过期的节点名下的租约库存收回Redis，并通知各节点清除售罄标记
+     * @return 收回的库存数量
+     */
+    public long reclaimExpired(Long voucherId) {
+        long reclaimed = 0;
+        try {
+            for (Object owner : stringRedisTemplate.opsForHash().keys(leasedKey(voucherId))) {
+                String ownerId = owner.toString();
+                if (ownerId.equals(nodeId) || Boolean.TRUE.equals(stringRedisTemplate.hasKey(nodeKey(ownerId)))) {
+                    continue;
+                }
+                Long count = stringRedisTemplate.execute(RECLAIM_SCRIPT,
+                        Arrays.asList(SECKILL_STOCK_KEY + voucherId, leasedKey(voucherId), nodeKey(ownerId)), ownerId);
+                if (count != null && count > 0) {
+                    reclaimed += count;
+                    log.warn("优惠券{}收回已失效节点{}的租约库存{}", voucherId, ownerId, count);
+                }
+            }
+            if (reclaimed > 0) {
+                soldOutRegistry.publishRestock(voucherId);
+            }
+        } catch (Exception e) {
+            log.error("优惠券{}收回失效节点的租约失败", voucherId, e);
+        }
+        return reclaimed;
+    }
+
+    private void returnLocal(Lease lease) {
+        int count = lease.local.getAndSet(0);
+        if (count <= 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute(RETURN_SCRIPT,
+                    Arrays.asList(SECKILL_STOCK_KEY + lease.voucherId, leasedKey(lease.voucherId)),
+                    lease.owner, String.valueOf(count));
+            soldOutRegistry.publishRestock(lease.voucherId);
+            log.info("优惠券{}归还租约库存{}", lease.voucherId, count);
+        } catch (Exception e) {
+            // 归还失败放回本地，下一轮再试
+            lease.local.addAndGet(count);
+            log.error("优惠券{}归还租约库存失败", lease.voucherId, e);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        Map<Long, Integer> local = new HashMap<>();
+        leases.forEach((voucherId, lease) -> local.put(voucherId, lease.local.get()));
+        long calls = commitCalls.sum();
+        stats.put("nodeId", nodeId);
+        stats.put("localStock", local);
+        stats.put("queued", queue.size());
+        stats.put("commitCalls", calls);
+        stats.put("avgBatchSize", calls == 0 ? 0 : committedRequests.sum() / (double) calls);
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        // 1.先把队列中的请求确认完
+        running = false;
+        committer.join(TimeUnit.SECONDS.toMillis(5));
+        // 2.再归还所有本地剩余库存
+        for (Lease lease : leases.values()) {
+            returnLocal(lease);
+        }
+        // 3.删除存活key，归还失败或确认中剩下的租约由其他节点收回
+        try {
+            stringRedisTemplate.delete(nodeKey(nodeId));
+        } catch (Exception e) {
+            log.error("删除租约节点{}失败", nodeId, e);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RedisListenerOverflowEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 分片库存：把一张热点秒杀券的库存拆到N个子key上，分散到集群的不同节点
+ * <p>
+ * 分片i的库存key为 seckill:stock:{voucherId:i}，订单key为 seckill:order:{voucherId:i}，
+ * 同一分片的两个key使用相同的hash tag，一个脚本只访问一个分片。
+ * 用户按id哈希到固定的归属分片，限购只在归属分片的订单hash（userId -> 已购数量）里判断；
+ * 归属分片库存不够时先在归属分片占住名额，再依次去其他分片借库存，借不到就释放名额。
+ * 一次购买的数量只从一个分片整体扣减，不拆到多个分片上，总库存不会超卖。
+ */
+@Slf4j
+@Component
+public class SeckillStockShards {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT;
+
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_take.lua"));
+        TAKE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 每张券的分片数，创建后不再变化
+     */
+    private final ConcurrentHashMap<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+    /**
+     * 本节点观察到已耗尽的分片，借库存时跳过，补货时清除
+     */
+    private final ConcurrentHashMap<Long, BitSet> drainedShards = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                drainedShards.remove(SeckillSoldOutRegistry.parseVoucherId(message.getBody())),
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    /**
+     * 补货消息可能丢失：清空本地的已扣完标记，下次按实际库存重新标记
+     */
+    @EventListener
+    public void onListenerOverflow(RedisListenerOverflowEvent event) {
+        drainedShards.clear();
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String limitKey(Long voucherId, int shard, Long userId) {
+        return SECKILL_LIMIT_KEY + "{" + voucherId + ":" + shard + "}:" + userId;
+    }
+
+    public static int homeShard(Long userId, int shards) {
+        return Math.floorMod(Long.hashCode(userId), shards);
+    }
+
+    /**
+     * 查询券的分片数，未分片的券返回1
+     */
+    public int shardCount(Long voucherId) {
+        return shardCounts.computeIfAbsent(voucherId, id -> {
+            String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + id);
+            return shards == null ? 1 : Integer.parseInt(shards);
+        });
+    }
+
+    /**
+     * 初始化分片库存，库存尽量均分到各分片
+     */
+    public void initStock(Long voucherId, int stock, int shards) {
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(share(stock, shards, i)));
+        }
+        // 分片库存全部写好之后再写分片数，避免读到一半的分片
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCounts.put(voucherId, shards);
+    }
+
+    /**
+     * 补货，补货数量尽量均分到各分片
+     */
+    public void addStock(Long voucherId, int count, int shards) {
+        for (int i = 0; i < shards; i++) {
+            int share = share(count, shards, i);
+            if (share > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), share);
+            }
+        }
+    }
+
+    /**
+     * 分片秒杀
+     * @param beginMillis 秒杀开始时间，毫秒时间戳
+     * @param endMillis 秒杀结束时间，毫秒时间戳
+     * @param windowMillis 用户限流滑动窗口长度，毫秒
+     * @param limit 窗口内单用户最多请求数，0表示不限
+     * @param quantity 购买数量
+     * @param userLimit 每人限购数量
+     * @return 0：成功；1：库存不足；2：超过限购；3：尚未开始；4：已经结束；5：请求过于频繁；
+     * 7：还有库存，但没有一个分片够本次购买数量
+     */
+    public int seckill(Long voucherId, Long userId, int shards, long beginMillis, long endMillis,
+                       long windowMillis, int limit, int quantity, int userLimit) {
+        String user = userId.toString();
+        int home = homeShard(userId, shards);
+        String count = String.valueOf(quantity);
+        // 1.在归属分片判断限购并扣库存
+        Long result = stringRedisTemplate.execute(
+                SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), limitKey(voucherId, home, userId)),
+                user, String.valueOf(beginMillis), String.valueOf(endMillis),
+                String.valueOf(windowMillis), String.valueOf(limit), count, String.valueOf(userLimit)
+        );
+        int r = result.intValue();
+        if (r != 6 && r != 7) {
+            return r;
+        }
+        // 2.归属分片库存不够，名额已占住，依次去其他分片借库存
+        BitSet drained = drainedShards.computeIfAbsent(voucherId, id -> new BitSet(shards));
+        boolean allDrained = r == 6;
+        if (allDrained) {
+            markDrained(drained, home);
+        }
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            if (isDrained(drained, shard)) {
+                continue;
+            }
+            Long taken = stringRedisTemplate.execute(
+                    TAKE_SCRIPT, Collections.singletonList(stockKey(voucherId, shard)), count);
+            if (taken != null && taken == 1L) {
+                return 0;
+            }
+            if (taken != null && taken == 0L) {
+                markDrained(drained, shard);
+            } else {
+                allDrained = false;
+            }
+        }
+        // 3.所有分片都借不到，释放名额
+        stringRedisTemplate.opsForHash().increment(orderKey(voucherId, home), user, -quantity);
+        return allDrained ? 1 : 7;
+    }
+
+    /**
+     * 分片秒杀的异步版本，每次脚本调用都在Lettuce回调中衔接，返回值与 {@link #seckill} 相同
+     */
+    public CompletableFuture<Integer> seckillAsync(Long voucherId, Long userId, int shards, long beginMillis,
+                                                   long endMillis, long windowMillis, int limit,
+                                                   int quantity, int userLimit) {
+        int home = homeShard(userId, shards);
+        // 1.在归属分片判断限购并扣库存
+        return reactiveStringRedisTemplate.execute(
+                SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), limitKey(voucherId, home, userId)),
+                Arrays.asList(userId.toString(), String.valueOf(beginMillis), String.valueOf(endMillis),
+                        String.valueOf(windowMillis), String.valueOf(limit),
+                        String.valueOf(quantity), String.valueOf(userLimit))
+        ).next().toFuture().thenCompose(result -> {
+            int r = result.intValue();
+            if (r != 6 && r != 7) {
+                return CompletableFuture.completedFuture(r);
+            }
+            // 2.归属分片库存不够，名额已占住，依次去其他分片借库存
+            BitSet drained = drainedShards.computeIfAbsent(voucherId, id -> new BitSet(shards));
+            if (r == 6) {
+                markDrained(drained, home);
+            }
+            return borrowAsync(voucherId, userId, shards, home, 1, quantity, r == 6, drained);
+        });
+    }
+
+    private CompletableFuture<Integer> borrowAsync(Long voucherId, Long userId, int shards, int home, int offset,
+                                                   int quantity, boolean allDrained, BitSet drained) {
+        // 3.所有分片都借不到，释放名额
+        if (offset >= shards) {
+            return reactiveStringRedisTemplate.opsForHash()
+                    .increment(orderKey(voucherId, home), userId.toString(), -quantity)
+                    .toFuture()
+                    .thenApply(remaining -> allDrained ? 1 : 7);
+        }
+        int shard = (home + offset) % shards;
+        if (isDrained(drained, shard)) {
+            return borrowAsync(voucherId, userId, shards, home, offset + 1, quantity, allDrained, drained);
+        }
+        return reactiveStringRedisTemplate.execute(
+                TAKE_SCRIPT, Collections.singletonList(stockKey(voucherId, shard)),
+                Collections.singletonList(String.valueOf(quantity))
+        ).next().toFuture().thenCompose(taken -> {
+            if (taken != null && taken == 1L) {
+                return CompletableFuture.completedFuture(0);
+            }
+            boolean shardDrained = taken != null && taken == 0L;
+            if (shardDrained) {
+                markDrained(drained, shard);
+            }
+            return borrowAsync(voucherId, userId, shards, home, offset + 1, quantity,
+                    allDrained && shardDrained, drained);
+        });
+    }
+
+    private static int share(int total, int shards, int shard) {
+        return total / shards + (shard < total % shards ? 1 : 0);
+    }
+
+    private static boolean isDrained(BitSet drained, int shard) {
+        synchronized (drained) {
+            return drained.get(shard);
+        }
+    }
+
+    private static void markDrained(BitSet drained, int shard) {
+        synchronized (drained) {
+            drained.set(shard);
+        }
+    }
+}
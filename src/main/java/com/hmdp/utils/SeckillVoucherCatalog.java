@@ -0,0 +1,191 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RedisListenerOverflowEvent;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_CATALOG_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ROOM_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 本地秒杀券目录：未结束（及刚结束不久）的秒杀券的时间窗口、分片数、每人限购数量、等候室设置和Redis库存是否已就绪
+ * <p>
+ * 定时整体刷新，新建秒杀券后通过 seckill:catalog 频道通知各节点在单独的线程上立即刷新。
+ * 秒杀请求先在这里判断券是否存在、是否在时间窗口内，不访问数据库和Redis。
+ */
+@Slf4j
+@Component
+public class SeckillVoucherCatalog {
+    /**
+     * 已结束的券在目录中保留的时间，期间返回“秒杀已结束”而不是“秒杀券不存在”
+     */
+    private static final long ENDED_RETENTION_HOURS = 24;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private volatile Map<Long, Entry> vouchers = Collections.emptyMap();
+    /**
+     * 收到通知后在这里刷新：一次刷新要查数据库和Redis，不能占用Redis订阅消息的分发线程
+     */
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "seckill-catalog-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+    @Getter
+    public static final class Entry {
+        private final long beginMillis;
+        private final long endMillis;
+        private final int shards;
+        private final int userLimit;
+        /**
+         * 节点一次租用的库存数量，0表示不使用租约
+         */
+        private final int leaseBlock;
+        /**
+         * 等候室每秒放行人数，0表示不使用等候室
+         */
+        private final int waitingRoomRate;
+        private final boolean stockReady;
+
+        Entry(long beginMillis, long endMillis, int shards, int userLimit, int leaseBlock, int waitingRoomRate,
+              boolean stockReady) {
+            this.beginMillis = beginMillis;
+            this.endMillis = endMillis;
+            this.shards = shards;
+            this.userLimit = userLimit;
+            this.leaseBlock = leaseBlock;
+            this.waitingRoomRate = waitingRoomRate;
+            this.stockReady = stockReady;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> requestRefresh(),
+                new ChannelTopic(SECKILL_CATALOG_CHANNEL));
+        refresh();
+    }
+
+    /**
+     * 通知消息可能丢失，重新加载目录
+     */
+    @EventListener
+    public void onListenerOverflow(RedisListenerOverflowEvent event) {
+        requestRefresh();
+    }
+
+    /**
+     * 异步刷新，还没开始的刷新只保留一次，连续的通知合并
+     */
+    private void requestRefresh() {
+        if (refreshPending.compareAndSet(false, true)) {
+            refresher.execute(() -> {
+                refreshPending.set(false);
+                refresh();
+            });
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * @return 券的秒杀信息，不是秒杀券或已结束很久的券返回null
+     */
+    public Entry get(Long voucherId) {
+        return vouchers.get(voucherId);
+    }
+
+    public Set<Long> voucherIds() {
+        return vouchers.keySet();
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.catalog-refresh:5000}")
+    public synchronized void refresh() {
+        try {
+            // 1.查询未结束的秒杀券
+            List<SeckillVoucher> list = seckillVoucherService.query()
+                    .select("voucher_id", "user_limit", "begin_time", "end_time")
+                    .gt("end_time", LocalDateTime.now().minusHours(ENDED_RETENTION_HOURS))
+                    .list();
+            // 2.批量查询分片数、租约块大小、等候室放行速率和库存key
+            List<String> shardKeys = new ArrayList<>(list.size());
+            List<String> leaseKeys = new ArrayList<>(list.size());
+            List<String> roomKeys = new ArrayList<>(list.size());
+            List<String> stockKeys = new ArrayList<>(list.size());
+            for (SeckillVoucher voucher : list) {
+                shardKeys.add(SECKILL_SHARDS_KEY + voucher.getVoucherId());
+                leaseKeys.add(SECKILL_LEASE_KEY + voucher.getVoucherId());
+                roomKeys.add(SECKILL_ROOM_KEY + voucher.getVoucherId());
+                stockKeys.add(SECKILL_STOCK_KEY + voucher.getVoucherId());
+            }
+            List<String> shardValues = list.isEmpty() ? Collections.emptyList()
+                    : stringRedisTemplate.opsForValue().multiGet(shardKeys);
+            List<String> leaseValues = list.isEmpty() ? Collections.emptyList()
+                    : stringRedisTemplate.opsForValue().multiGet(leaseKeys);
+            List<String> roomValues = list.isEmpty() ? Collections.emptyList()
+                    : stringRedisTemplate.opsForValue().multiGet(roomKeys);
+            List<String> stockValues = list.isEmpty() ? Collections.emptyList()
+                    : stringRedisTemplate.opsForValue().multiGet(stockKeys);
+            // 3.整体替换目录
+            Map<Long, Entry> map = new HashMap<>(list.size() * 2);
+            for (int i = 0; i < list.size(); i++) {
+                SeckillVoucher voucher = list.get(i);
+                String shards = shardValues.get(i);
+                String leaseBlock = leaseValues.get(i);
+                String roomRate = roomValues.get(i);
+                boolean stockReady = shards != null || stockValues.get(i) != null;
+                map.put(voucher.getVoucherId(), new Entry(
+                        toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime()),
+                        shards == null ? 1 : Integer.parseInt(shards),
+                        voucher.getUserLimit() == null ? 1 : voucher.getUserLimit(),
+                        leaseBlock == null ? 0 : Integer.parseInt(leaseBlock),
+                        roomRate == null ? 0 : Integer.parseInt(roomRate), stockReady));
+            }
+            vouchers = map;
+        } catch (Exception e) {
+            // 刷新失败保留旧目录
+            log.error("刷新秒杀券目录失败", e);
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
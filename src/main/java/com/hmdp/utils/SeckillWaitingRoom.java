@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ROOM_QUEUE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ROOM_STATE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀等候室：需求远超库存的券，用户先排队领号，按号码分批放行后才能进入秒杀脚本
+ * <p>
+ * 排队号由 seckill:room:queue:{id}（zset，userId -> 排队号）发放，放行水位记在 seckill:room:state:{id}，
+ * 各节点定时调用放行脚本，以Redis时间控制每个间隔只推进一批（券的每秒放行人数 × 间隔）。
+ * 发号数、放行水位和是否关闭同步到本地，查询排队位置只读本地，不访问Redis。
+ * 券售罄时立即关闭等候室，不再发号，还在排队的用户查询位置时得知已售罄；补货后重新开放。
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+    /**
+     * 秒杀结束后排队数据保留的时间
+     */
+    private static final long RETENTION_HOURS = 24;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    @Resource
+    private SeckillVoucherCatalog seckillVoucherCatalog;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.room.admit-interval:1000}")
+    private long admitInterval;
+
+    private static final DefaultRedisScript<Long> JOIN_SCRIPT;
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> ADMIT_SCRIPT;
+
+    static {
+        JOIN_SCRIPT = new DefaultRedisScript<>();
+        JOIN_SCRIPT.setLocation(new ClassPathResource("seckill_room_join.lua"));
+        JOIN_SCRIPT.setResultType(Long.class);
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("seckill_room_admit.lua"));
+        ADMIT_SCRIPT.setResultType(List.class);
+    }
+
+    private final ConcurrentHashMap<Long, Room> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * 等候室状态的本地副本，由放行任务定时同步
+     */
+    private static final class Room {
+        volatile long issued;
+        volatile long admitted;
+        volatile boolean closed;
+    }
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                close(SeckillSoldOutRegistry.parseVoucherId(message.getBody())), new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                reopen(SeckillSoldOutRegistry.parseVoucherId(message.getBody())), new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    /**
+     * 进入等候室领取排队号，重复进入返回原号码
+     * @return 排队号，等候室已关闭返回-1
+     */
+    public long join(Long voucherId, Long userId, long endMillis) {
+        Room room = room(voucherId);
+        if (room.closed) {
+            return -1;
+        }
+        long expireAt = endMillis + TimeUnit.HOURS.toMillis(RETENTION_HOURS);
+        Long ticket = stringRedisTemplate.execute(
+                JOIN_SCRIPT,
+                Arrays.asList(SECKILL_ROOM_QUEUE_KEY + voucherId, SECKILL_ROOM_STATE_KEY + voucherId),
+                userId.toString(), String.valueOf(expireAt));
+        if (ticket == null || ticket < 0) {
+            room.closed = true;
+            return -1;
+        }
+        if (ticket > room.issued) {
+            room.issued = ticket;
+        }
+        return ticket;
+    }
+
+    /**
+     * @return 用户的排队号，没有排队返回0
+     */
+    public CompletableFuture<Long> ticket(Long voucherId, Long userId) {
+        return reactiveStringRedisTemplate.opsForZSet()
+                .score(SECKILL_ROOM_QUEUE_KEY + voucherId, userId.toString())
+                .map(Double::longValue)
+                .defaultIfEmpty(0L)
+                .toFuture();
+    }
+
+    /**
+     * @return 本地的放行水位，排队号不大于水位的用户可以秒杀
+     */
+    public long admitted(Long voucherId) {
+        Room room = rooms.get(voucherId);
+        return room == null ? 0 : room.admitted;
+    }
+
+    public boolean isClosed(Long voucherId) {
+        Room room = rooms.get(voucherId);
+        return room != null && room.closed;
+    }
+
+    /**
+     * 查询排队位置，只读本地状态
+     * @param ticket 排队号
+     * @param rate 每秒放行人数，用于估算等待时间
+     */
+    public Map<String, Object> position(Long voucherId, long ticket, int rate) {
+        Room room = room(voucherId);
+        long admitted = room.admitted;
+        long ahead = Math.max(0, ticket - admitted);
+        Map<String, Object> position = new LinkedHashMap<>();
+        position.put("ticket", ticket);
+        position.put("admitted", ticket <= admitted);
+        position.put("ahead", ahead);
+        position.put("estimatedWaitSeconds", rate <= 0 ? 0 : (ahead + rate - 1) / rate);
+        position.put("closed", room.closed);
+        return position;
+    }
+
+    /**
+     * 券售罄，关闭等候室；各节点收到售罄广播都会执行，重复关闭无影响
+     */
+    public void close(Long voucherId) {
+        Room room = rooms.get(voucherId);
+        if (room == null || room.closed) {
+            return;
+        }
+        room.closed = true;
+        stringRedisTemplate.opsForHash().put(SECKILL_ROOM_STATE_KEY + voucherId, "closed", "1");
+        log.info("优惠券{}已售罄，关闭等候室", voucherId);
+    }
+
+    /**
+     * 补货后重新开放等候室，已发的号码和放行水位保留
+     */
+    public void reopen(Long voucherId) {
+        Room room = rooms.get(voucherId);
+        if (room == null) {
+            return;
+        }
+        stringRedisTemplate.opsForHash().delete(SECKILL_ROOM_STATE_KEY + voucherId, "closed");
+        room.closed = false;
+    }
+
+    /**
+     * 对进行中的等候室券推进放行水位，并把发号数、水位、是否关闭同步到本地
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.room.admit-interval:1000}")
+    public void admit() {
+        long now = System.currentTimeMillis();
+        for (Long voucherId : seckillVoucherCatalog.voucherIds()) {
+            SeckillVoucherCatalog.Entry voucher = seckillVoucherCatalog.get(voucherId);
+            if (voucher == null || voucher.getWaitingRoomRate() <= 0) {
+                continue;
+            }
+            if (now > voucher.getEndMillis()) {
+                // 秒杀已结束，不再同步
+                rooms.remove(voucherId);
+                continue;
+            }
+            try {
+                // 秒杀开始前只同步发号数，不放行
+                long batch = now < voucher.getBeginMillis() ? 0
+                        : Math.max(1, voucher.getWaitingRoomRate() * admitInterval / 1000);
+                List<?> result = stringRedisTemplate.execute(
+                        ADMIT_SCRIPT,
+                        Collections.singletonList(SECKILL_ROOM_STATE_KEY + voucherId),
+                        String.valueOf(batch), String.valueOf(admitInterval));
+                Room room = room(voucherId);
+                room.issued = ((Number) result.get(0)).longValue();
+                room.admitted = ((Number) result.get(1)).longValue();
+                room.closed = ((Number) result.get(2)).longValue() == 1;
+            } catch (Exception e) {
+                log.error("推进等候室放行水位失败，优惠券id：{}", voucherId, e);
+            }
+        }
+    }
+
+    /**
+     * @return 各等候室的发号数、放行水位、排队人数和是否关闭
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        rooms.forEach((voucherId, room) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("issued", room.issued);
+            item.put("admitted", room.admitted);
+            item.put("waiting", Math.max(0, room.issued - room.admitted));
+            item.put("closed", room.closed);
+            stats.put(String.valueOf(voucherId), item);
+        });
+        return stats;
+    }
+
+    private Room room(Long voucherId) {
+        return rooms.computeIfAbsent(voucherId, id -> new Room());
+    }
+}
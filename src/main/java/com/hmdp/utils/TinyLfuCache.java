@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 有界本地缓存，按W-TinyLFU的方式决定保留哪些key
+ * <p>
+ * 新key先进入约占容量1%的窗口区（LRU），被挤出窗口时与主区（LRU）队尾的key比较近期访问频率，
+ * 频率更高才能进入主区，否则直接丢弃。访问频率由Count-Min Sketch估算，累计记录达到容量的10倍时整体减半。
+ * 一次性访问的冷key很难挤掉反复访问的热key。每个条目有自己的过期时间，过期后读取视为未命中。
+ */
+public class TinyLfuCache<V> {
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B1, 0x7F4A7C15, 0x2545F491, 0x61C88647};
+
+    private final int windowSize;
+    private final int mainSize;
+    private final LinkedHashMap<String, Entry<V>> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry<V>> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final int[][] counts;
+    private final int mask;
+    private final int resetSize;
+    private int additions;
+    private long evictions;
+    private long rejections;
+
+    private static final class Entry<V> {
+        final V value;
+        final long expireAt;
+
+        Entry(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * @param maxSize 最大条目数
+     */
+    public TinyLfuCache(int maxSize) {
+        this.windowSize = Math.max(1, maxSize / 100);
+        this.mainSize = Math.max(1, maxSize - windowSize);
+        int width = Integer.highestOneBit(Math.max(16, maxSize * 2 - 1)) << 1;
+        this.counts = new int[DEPTH][width];
+        this.mask = width - 1;
+        this.resetSize = maxSize * 10;
+    }
+
+    /**
+     * @return 未过期的值，未命中返回null
+     */
+    public synchronized V get(String key, long now) {
+        increment(key);
+        Entry<V> entry = window.get(key);
+        if (entry == null) {
+            entry = main.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt <= now) {
+            remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public synchronized void put(String key, V value, long expireAt) {
+        Entry<V> entry = new Entry<>(value, expireAt);
+        // 1.已有的key原地替换
+        if (main.containsKey(key)) {
+            main.put(key, entry);
+            return;
+        }
+        window.put(key, entry);
+        if (window.size() <= windowSize) {
+            return;
+        }
+        // 2.窗口区满，挤出最久未访问的候选key
+        Iterator<Map.Entry<String, Entry<V>>> it = window.entrySet().iterator();
+        Map.Entry<String, Entry<V>> candidate = it.next();
+        it.remove();
+        if (main.size() < mainSize) {
+            main.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        // 3.主区满，候选key的访问频率高于主区队尾的key才替换它
+        Iterator<Map.Entry<String, Entry<V>>> mainIt = main.entrySet().iterator();
+        Map.Entry<String, Entry<V>> victim = mainIt.next();
+        if (frequency(candidate.getKey()) > frequency(victim.getKey())) {
+            mainIt.remove();
+            main.put(candidate.getKey(), candidate.getValue());
+            evictions++;
+        } else {
+            rejections++;
+        }
+    }
+
+    public synchronized void remove(String key) {
+        if (window.remove(key) == null) {
+            main.remove(key);
+        }
+    }
+
+    public synchronized void clear() {
+        window.clear();
+        main.clear();
+    }
+
+    public synchronized int size() {
+        return window.size() + main.size();
+    }
+
+    /**
+     * @return 因访问频率更高的key进入主区而被淘汰的条目数
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return 访问频率不够、没能进入主区的条目数
+     */
+    public synchronized long rejections() {
+        return rejections;
+    }
+
+    private void increment(String key) {
+        int h = key.hashCode();
+        for (int i = 0; i < DEPTH; i++) {
+            int index = index(h, i);
+            if (counts[i][index] < Integer.MAX_VALUE) {
+                counts[i][index]++;
+            }
+        }
+        // 计数整体减半，频率只反映近期的访问
+        if (++additions >= resetSize) {
+            for (int[] row : counts) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            additions >>= 1;
+        }
+    }
+
+    private int frequency(String key) {
+        int h = key.hashCode();
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counts[i][index(h, i)]);
+        }
+        return min;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash ^ SEEDS[row];
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
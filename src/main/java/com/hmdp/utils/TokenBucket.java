@@ -0,0 +1,33 @@
+package com.hmdp.utils;
+
+/**
+ * 本地令牌桶，按时间惰性补充令牌
+ */
+public class TokenBucket {
+    private final double permitsPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param permitsPerSecond 每秒补充的令牌数
+     * @param burst 桶容量，允许的最大突发
+     */
+    public TokenBucket(double permitsPerSecond, double burst) {
+        this.permitsPerNano = permitsPerSecond / 1_000_000_000d;
+        this.capacity = Math.max(burst, 1);
+        this.tokens = this.capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
@@ -2,6 +2,8 @@ package com.hmdp.utils;
 
 import com.hmdp.dto.UserDTO;
 
+import java.util.function.Function;
+
 public class UserHolder {
     private static final ThreadLocal<UserDTO> tl = new ThreadLocal<>();
 
@@ -16,4 +18,24 @@ public class UserHolder {
     public static void removeUser(){
         tl.remove();
     }
+
+    /**
+     * 把当前线程的用户带到异步回调中：回调执行期间可以通过 {@link #getUser()} 取到用户，执行完恢复回调线程原来的值
+     */
+    public static <T, R> Function<T, R> wrap(Function<T, R> fn) {
+        UserDTO user = tl.get();
+        return t -> {
+            UserDTO previous = tl.get();
+            tl.set(user);
+            try {
+                return fn.apply(t);
+            } finally {
+                if (previous == null) {
+                    tl.remove();
+                } else {
+                    tl.set(previous);
+                }
+            }
+        };
+    }
 }
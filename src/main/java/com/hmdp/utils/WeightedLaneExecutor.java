@@ -0,0 +1,258 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按key分lane的线程池：每个key（如优惠券id）一条独立队列，工作线程按加权差额轮询（DRR）在有任务的lane之间调度
+ * <p>
+ * 每轮一条lane最多连续执行权重个任务，再轮到下一条，一个key的任务再多也只占自己那份执行机会，
+ * 不会饿死其他key。lane容量是软上限：超过时提交仍然成功，由调用方据此暂停上游，回落到恢复水位后再放开。
+ */
+@Slf4j
+public class WeightedLaneExecutor {
+    /**
+     * 空闲超过该时间的lane被清理，秒杀结束的券不会一直占着
+     */
+    private static final long IDLE_LANE_MILLIS = 10 * 60 * 1000L;
+    /**
+     * 提交任务时最多每隔这么久检查一次空闲lane
+     */
+    private static final long PRUNE_INTERVAL_MILLIS = 60 * 1000L;
+
+    private final int laneCapacity;
+    private final int resumeSize;
+    private final Map<Object, Integer> weights;
+    private final ConcurrentHashMap<Object, Lane> lanes = new ConcurrentHashMap<>();
+    /**
+     * 有任务的lane，队头为当前轮到的lane
+     */
+    private final ArrayDeque<Lane> active = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Thread[] workers;
+    private volatile boolean running = true;
+    private long lastPrunedAt = System.currentTimeMillis();
+
+    private static final class Lane {
+        final Object key;
+        final int weight;
+        final ArrayDeque<Task> queue = new ArrayDeque<>();
+        int deficit;
+        boolean scheduled;
+        int inFlight;
+        long completed;
+        volatile long lastLagMillis;
+        volatile long maxLagMillis;
+        long lastActiveAt = System.currentTimeMillis();
+
+        Lane(Object key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long eventTime;
+        final long enqueuedAt = System.currentTimeMillis();
+
+        Task(Runnable runnable, long eventTime) {
+            this.runnable = runnable;
+            this.eventTime = eventTime;
+        }
+    }
+
+    /**
+     * @param threads 工作线程数
+     * @param laneCapacity 单条lane的排队上限（软上限）
+     * @param resumePercent 排队数回落到容量的该百分比以下时可以恢复上游
+     * @param weights 各key的权重，未配置的key权重为1
+     */
+    public WeightedLaneExecutor(String name, int threads, int laneCapacity, int resumePercent,
+                                Map<?, Integer> weights) {
+        this.laneCapacity = laneCapacity;
+        this.resumeSize = laneCapacity * resumePercent / 100;
+        this.weights = new ConcurrentHashMap<>(weights);
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, name + "-" + i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * 提交任务到key对应的lane
+     * @param eventTime 事件产生时间，用于统计处理延迟
+     * @return 提交后该lane是否已经达到容量，调用方应暂停该key的上游
+     */
+    public boolean execute(Object key, long eventTime, Runnable task) {
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            if (now - lastPrunedAt > PRUNE_INTERVAL_MILLIS) {
+                pruneIdleLanes(now);
+            }
+            Lane lane = lanes.computeIfAbsent(key, k -> new Lane(k, Math.max(1, weights.getOrDefault(k, 1))));
+            lane.queue.addLast(new Task(task, eventTime));
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                active.addLast(lane);
+                notEmpty.signal();
+            }
+            return lane.queue.size() >= laneCapacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return key对应的lane排队数是否已回落到恢复水位
+     */
+    public boolean canResume(Object key) {
+        Lane lane = lanes.get(key);
+        if (lane == null) {
+            return true;
+        }
+        lock.lock();
+        try {
+            return lane.queue.size() <= resumeSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Lane lane;
+            Task task;
+            lock.lock();
+            try {
+                // 1.等待有任务的lane，关闭后处理完剩余任务再退出
+                while (active.isEmpty()) {
+                    if (!running) {
+                        return;
+                    }
+                    notEmpty.await(1, TimeUnit.SECONDS);
+                }
+                // 2.队头lane本轮额度用完时先补一份权重
+                lane = active.peekFirst();
+                if (lane.deficit <= 0) {
+                    lane.deficit += lane.weight;
+                }
+                task = lane.queue.pollFirst();
+                lane.deficit--;
+                lane.inFlight++;
+                // 3.lane空了移出调度，额度清零；本轮额度用完则排到队尾
+                if (lane.queue.isEmpty()) {
+                    active.pollFirst();
+                    lane.scheduled = false;
+                    lane.deficit = 0;
+                } else if (lane.deficit <= 0) {
+                    active.addLast(active.pollFirst());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                task.runnable.run();
+            } catch (Exception e) {
+                // 吞掉异常，避免工作线程退出
+                log.error("任务执行异常，key：{}", lane.key, e);
+            } finally {
+                long lag = System.currentTimeMillis() - task.eventTime;
+                lane.lastLagMillis = lag;
+                if (lag > lane.maxLagMillis) {
+                    lane.maxLagMillis = lag;
+                }
+                lock.lock();
+                try {
+                    lane.inFlight--;
+                    lane.completed++;
+                    lane.lastActiveAt = System.currentTimeMillis();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 所有lane中排队等待执行的任务数
+     */
+    public int queuedCount() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (Lane lane : lanes.values()) {
+                count += lane.queue.size();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 清理长时间空闲的lane，调用方持有锁
+     */
+    private void pruneIdleLanes(long now) {
+        lanes.values().removeIf(lane -> !lane.scheduled && lane.inFlight == 0
+                && now - lane.lastActiveAt > IDLE_LANE_MILLIS);
+        lastPrunedAt = now;
+    }
+
+    /**
+     * 各lane的排队数、执行中数、完成数、队头等待时间和事件处理延迟
+     */
+    public Map<String, Object> stats() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            for (Lane lane : lanes.values()) {
+                stats.put(String.valueOf(lane.key), laneStats(lane, now));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return stats;
+    }
+
+    private static Map<String, Object> laneStats(Lane lane, long now) {
+        Task head = lane.queue.peekFirst();
+        Map<String, Object> item = new LinkedHashMap<>();
+        item.put("weight", lane.weight);
+        item.put("queued", lane.queue.size());
+        item.put("inFlight", lane.inFlight);
+        item.put("completed", lane.completed);
+        item.put("oldestWaitMillis", head == null ? 0 : now - head.enqueuedAt);
+        item.put("lastLagMillis", lane.lastLagMillis);
+        item.put("maxLagMillis", lane.maxLagMillis);
+        return item;
+    }
+
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            for (Thread worker : workers) {
+                worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+-- 批量写入订单状态，终态（C/F）不会被排队状态（Q）覆盖，写完后把本批变化的状态合并成一条消息广播
+-- 1.参数列表
+-- 1.1.状态过期时间，秒
+local ttl = ARGV[1]
+-- 1.2.广播频道
+local channel = ARGV[2]
+-- 1.3.之后每两个参数为 订单id、状态码
+
+-- 2.逐个写入
+local changed = {}
+for i = 3, #ARGV, 2 do
+    local key = 'order:status:' .. ARGV[i]
+    local status = ARGV[i + 1]
+    local current = redis.call('get', key)
+    if ((not current) or (current == 'Q' and status ~= 'Q')) then
+        redis.call('set', key, status, 'EX', ttl)
+        table.insert(changed, ARGV[i] .. ':' .. status)
+    end
+end
+-- 3.广播 订单id:状态码,订单id:状态码...
+if (#changed > 0) then
+    redis.call('publish', channel, table.concat(changed, ','))
+end
+return #changed
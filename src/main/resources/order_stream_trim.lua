@@ -0,0 +1,4 @@
+-- 删除订单Stream中已经投递并确认的消息
+-- KEYS[1]：Stream key；ARGV[1]：消费者组最早未确认的消息id，没有未确认消息时为最后投递的消息id
+-- MINID ~ 按宏节点整块删除id小于ARGV[1]的消息，可能少删一些，不会多删，需要Redis 6.2及以上
+return redis.call('xtrim', KEYS[1], 'MINID', '~', ARGV[1])
@@ -4,29 +4,80 @@ local voucherId = ARGV[1]
 -- 1.2.用户id
 local userId = ARGV[2]
 -- 1.3.订单id
--- local orderId = ARGV[3]
+local orderId = ARGV[3]
+-- 1.4.订单Stream key，为空表示由调用方在脚本执行成功后投递订单
+local streamKey = ARGV[4]
+-- 1.5.秒杀开始、结束时间，毫秒时间戳
+local beginMillis = tonumber(ARGV[5])
+local endMillis = tonumber(ARGV[6])
+-- 1.6.用户滑动窗口限流：窗口长度（毫秒）、窗口内最多请求数，0表示不限
+local windowMillis = tonumber(ARGV[7])
+local limit = tonumber(ARGV[8])
+-- 1.7.购买数量、每人限购数量
+local quantity = tonumber(ARGV[9])
+local userLimit = tonumber(ARGV[10])
 -- 2.数据key
 -- 2.1.库存key
 local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
+-- 2.2.订单key，hash结构：userId -> 已购数量
 local orderKey = 'seckill:order:' .. voucherId
+-- 2.3.限流计数key前缀
+local limitKey = 'seckill:limit:' .. voucherId .. ':' .. userId
 
 -- 3.脚本业务
+-- 3.0.以Redis时间判断秒杀时间窗口，各节点以同一个时钟为准
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (now < beginMillis) then
+    -- 尚未开始，返回3
+    return 3
+end
+if (now > endMillis) then
+    -- 已经结束，返回4
+    return 4
+end
+-- 3.0.1.扣库存之前按用户滑动窗口限流，超出返回5
+if (limit > 0) then
+    local window = math.floor(now / windowMillis)
+    local currentKey = limitKey .. ':' .. window
+    local previous = tonumber(redis.call('get', limitKey .. ':' .. (window - 1)) or '0')
+    local current = tonumber(redis.call('get', currentKey) or '0')
+    -- 上一窗口的计数按剩余比例折算
+    local weight = 1 - (now % windowMillis) / windowMillis
+    if (previous * weight + current >= limit) then
+        return 5
+    end
+    redis.call('incr', currentKey)
+    redis.call('pexpire', currentKey, windowMillis * 2)
+end
 -- 3.1.判断库存是否充足 get stockKey
-if (tonumber(redis.call('get',stockKey)) <= 0) then
+local stock = tonumber(redis.call('get', stockKey))
+if (stock <= 0) then
     -- 3.2.库存不足，返回1
     return 1
 end
-
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
-if (redis.call('sismember',orderKey,userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
+if (stock < quantity) then
+    -- 3.3.还有库存，但不够本次购买数量，返回7
+    return 7
+end
+-- 3.4.判断用户已购数量加上本次购买是否超过限购 HGET orderKey userId
+local bought = tonumber(redis.call('hget', orderKey, userId) or '0')
+if (bought + quantity > userLimit) then
+    -- 3.5.超过限购，返回2
     return 2
 end
--- 3.4.扣库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd',orderKey,userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
--- redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
+-- 3.6.扣库存 incrby stockKey -quantity
+stock = redis.call('incrby', stockKey, -quantity)
+-- 3.7.下单（累加用户已购数量）hincrby orderKey userId quantity
+redis.call('hincrby', orderKey, userId, quantity)
+-- 3.8.库存刚好卖完，带上补货代数广播售罄，各节点在本地拦截后续请求
+if (stock == 0) then
+    local generation = redis.call('get', 'seckill:restock:gen:' .. voucherId) or '0'
+    redis.call('publish', 'seckill:soldout', voucherId .. ':' .. generation)
+end
+-- 3.9.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
+if (streamKey ~= nil and streamKey ~= '') then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'quantity', quantity)
+end
 return 0
\ No newline at end of file
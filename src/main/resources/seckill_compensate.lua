@@ -0,0 +1,26 @@
+-- 订单最终失败时补偿Redis：归还库存、扣回用户已购数量，同一订单只补偿一次；
+-- 不传补偿标记key时直接归还，用于脚本放行后还没生成订单、没有入队的请求
+-- 1.参数列表
+-- 1.1.库存key（分片券为用户所属分片的库存key）
+local stockKey = KEYS[1]
+-- 1.2.订单key，hash结构：userId -> 已购数量
+local orderKey = KEYS[2]
+-- 1.3.补偿标记key，防止死信重复投递时重复补偿，可以不传
+local doneKey = KEYS[3]
+-- 1.4.用户id、购买数量、标记保留时间（秒）
+local userId = ARGV[1]
+local quantity = tonumber(ARGV[2])
+local doneTtl = tonumber(ARGV[3])
+
+-- 2.已经补偿过，返回0
+if (doneKey and not redis.call('set', doneKey, '1', 'NX', 'EX', doneTtl)) then
+    return 0
+end
+-- 3.归还库存
+redis.call('incrby', stockKey, quantity)
+-- 4.扣回用户已购数量，扣完删除字段
+if (redis.call('hincrby', orderKey, userId, -quantity) <= 0) then
+    redis.call('hdel', orderKey, userId)
+end
+-- 5.调用方推进补货代数并通知各节点清除售罄标记
+return 1
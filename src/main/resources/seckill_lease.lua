@@ -0,0 +1,26 @@
+-- 节点从券的Redis库存中租用一块库存，返回实际租到的数量；
+-- 库存已耗尽时返回 -各节点未用完的租约总数，都已用完返回0（真正售罄）
+-- 1.参数列表
+-- 1.1.库存key
+local stockKey = KEYS[1]
+-- 1.2.各节点未用完的租约数量，hash结构：nodeId -> 数量
+local leasedKey = KEYS[2]
+-- 1.3.节点id、希望租用的数量
+local nodeId = ARGV[1]
+local block = tonumber(ARGV[2])
+
+-- 2.按剩余库存租用，库存不足一块时租走剩下的全部
+local stock = tonumber(redis.call('get', stockKey) or '0')
+if (stock <= 0) then
+    -- 其他节点手里还有未用完的租约，可能稍后确认失败或归还，不能算售罄
+    local outstanding = 0
+    for _, v in ipairs(redis.call('hvals', leasedKey)) do
+        outstanding = outstanding + tonumber(v)
+    end
+    return -math.max(outstanding, 0)
+end
+local granted = math.min(stock, block)
+-- 3.扣库存并记到本节点名下，库存 + 各节点租约 始终等于未售出的数量
+redis.call('incrby', stockKey, -granted)
+redis.call('hincrby', leasedKey, nodeId, granted)
+return granted
@@ -0,0 +1,60 @@
+-- 批量确认节点本地放行的秒杀请求，限购以Redis订单hash为准
+-- 1.参数列表
+-- 1.1.订单key，hash结构：userId -> 已购数量
+local orderKey = KEYS[1]
+-- 1.2.各节点未用完的租约数量
+local leasedKey = KEYS[2]
+-- 1.3.本节点的存活key
+local nodeKey = KEYS[3]
+-- 1.4.节点id、秒杀开始结束时间（毫秒时间戳）、每人限购数量
+local nodeId = ARGV[1]
+local beginMillis = tonumber(ARGV[2])
+local endMillis = tonumber(ARGV[3])
+local userLimit = tonumber(ARGV[4])
+-- 1.5.之后每两个参数为一个请求：userId、购买数量
+
+-- 2.存活key已过期，本节点的租约可能已被其他节点收回，整批返回8，本地放行的库存作废
+if (redis.call('exists', nodeKey) == 0) then
+    local results = {}
+    for i = 5, #ARGV, 2 do
+        results[#results + 1] = 8
+    end
+    return results
+end
+
+-- 3.以Redis时间判断秒杀时间窗口，整批尚未开始返回3，已经结束返回4
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local rejected = 0
+if (now < beginMillis) then
+    rejected = 3
+elseif (now > endMillis) then
+    rejected = 4
+end
+
+-- 4.按顺序逐个判断限购，同一批里同一用户的多个请求依次累加
+local results = {}
+local committed = 0
+for i = 5, #ARGV, 2 do
+    local userId = ARGV[i]
+    local quantity = tonumber(ARGV[i + 1])
+    if (rejected ~= 0) then
+        results[#results + 1] = rejected
+    else
+        local bought = tonumber(redis.call('hget', orderKey, userId) or '0')
+        if (bought + quantity > userLimit) then
+            -- 超过限购，返回2
+            results[#results + 1] = 2
+        else
+            redis.call('hincrby', orderKey, userId, quantity)
+            committed = committed + quantity
+            results[#results + 1] = 0
+        end
+    end
+end
+-- 5.确认售出的数量从本节点租约中扣除
+if (committed > 0) then
+    redis.call('hincrby', leasedKey, nodeId, -committed)
+end
+return results
@@ -0,0 +1,23 @@
+-- 收回已失效节点名下未用完的租约库存
+-- 1.参数列表
+-- 1.1.库存key、各节点未用完的租约数量
+local stockKey = KEYS[1]
+local leasedKey = KEYS[2]
+-- 1.2.失效节点的存活key
+local nodeKey = KEYS[3]
+-- 1.3.失效节点id
+local nodeId = ARGV[1]
+
+-- 2.节点仍然存活（或已经续期）不收回
+if (redis.call('exists', nodeKey) == 1) then
+    return 0
+end
+-- 3.租约库存还回Redis库存；存活key过期后该节点的确认脚本都会被拒绝，收回后不会再从这份租约中卖出
+local count = tonumber(redis.call('hget', leasedKey, nodeId) or '0')
+redis.call('hdel', leasedKey, nodeId)
+if (count <= 0) then
+    return 0
+end
+redis.call('incrby', stockKey, count)
+-- 调用方推进补货代数并通知各节点清除售罄标记
+return count
@@ -0,0 +1,12 @@
+-- 节点归还未用完的租约库存
+local stockKey = KEYS[1]
+local leasedKey = KEYS[2]
+local nodeId = ARGV[1]
+local count = tonumber(ARGV[2])
+
+redis.call('incrby', stockKey, count)
+if (redis.call('hincrby', leasedKey, nodeId, -count) <= 0) then
+    redis.call('hdel', leasedKey, nodeId)
+end
+-- 调用方推进补货代数并通知各节点清除售罄标记
+return count
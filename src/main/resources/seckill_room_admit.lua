@@ -0,0 +1,26 @@
+-- 按批推进等候室的放行水位，排队号不大于水位的用户可以秒杀
+-- 各节点都会定时调用，以Redis时间和上次放行时间控制每个间隔只推进一次
+-- 返回 {已发号数, 放行水位, 是否关闭}
+-- 1.参数列表
+-- 1.1.等候室状态hash
+local stateKey = KEYS[1]
+-- 1.2.每批放行人数、放行间隔（毫秒）
+local batch = tonumber(ARGV[1])
+local interval = tonumber(ARGV[2])
+
+-- 2.读取当前状态
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local state = redis.call('hmget', stateKey, 'issued', 'admitted', 'closed', 'admitAt')
+local issued = tonumber(state[1] or '0')
+local admitted = tonumber(state[2] or '0')
+local closed = state[3] and 1 or 0
+local admitAt = tonumber(state[4] or '0')
+
+-- 3.未关闭、有人在等、距上次放行已满一个间隔时放行一批，batch为0（秒杀尚未开始）时只返回状态
+if (batch > 0 and closed == 0 and admitted < issued and now - admitAt >= interval) then
+    admitted = math.min(issued, admitted + batch)
+    redis.call('hset', stateKey, 'admitted', admitted, 'admitAt', now)
+end
+return {issued, admitted, closed}
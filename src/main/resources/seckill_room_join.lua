@@ -0,0 +1,27 @@
+-- 进入等候室领取排队号，已领过的返回原号码，等候室已关闭返回-1
+-- 1.参数列表
+-- 1.1.排队zset：userId -> 排队号
+local queueKey = KEYS[1]
+-- 1.2.等候室状态hash：issued 已发号数、admitted 放行水位、closed 是否关闭、admitAt 上次放行时间
+local stateKey = KEYS[2]
+-- 1.3.用户id、key的过期时间（毫秒时间戳）
+local userId = ARGV[1]
+local expireAt = tonumber(ARGV[2])
+
+-- 2.售罄后不再发号
+if (redis.call('hget', stateKey, 'closed')) then
+    return -1
+end
+-- 3.同一用户重复进入返回原号码，排队位置不变
+local ticket = redis.call('zscore', queueKey, userId)
+if (ticket) then
+    return tonumber(ticket)
+end
+-- 4.发号并入队，第一个号码发出时设置过期时间
+ticket = redis.call('hincrby', stateKey, 'issued', 1)
+redis.call('zadd', queueKey, ticket, userId)
+if (ticket == 1) then
+    redis.call('pexpireat', queueKey, expireAt)
+    redis.call('pexpireat', stateKey, expireAt)
+end
+return ticket
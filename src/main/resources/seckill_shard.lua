@@ -0,0 +1,65 @@
+-- 分片库存秒杀，只访问同一个分片（hash tag 相同）的key，集群下各分片可落在不同节点
+-- 1.参数列表
+-- 1.1.用户所属分片的库存key
+local stockKey = KEYS[1]
+-- 1.2.用户所属分片的订单key，hash结构：userId -> 已购数量
+local orderKey = KEYS[2]
+-- 1.3.用户限流计数key前缀，与分片使用相同的hash tag
+local limitKey = KEYS[3]
+-- 1.4.用户id
+local userId = ARGV[1]
+-- 1.5.秒杀开始、结束时间，毫秒时间戳
+local beginMillis = tonumber(ARGV[2])
+local endMillis = tonumber(ARGV[3])
+-- 1.6.用户滑动窗口限流：窗口长度（毫秒）、窗口内最多请求数，0表示不限
+local windowMillis = tonumber(ARGV[4])
+local limit = tonumber(ARGV[5])
+-- 1.7.购买数量、每人限购数量
+local quantity = tonumber(ARGV[6])
+local userLimit = tonumber(ARGV[7])
+
+-- 2.以Redis时间判断秒杀时间窗口，尚未开始返回3，已经结束返回4
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (now < beginMillis) then
+    return 3
+end
+if (now > endMillis) then
+    return 4
+end
+-- 2.1.扣库存之前按用户滑动窗口限流，超出返回5
+if (limit > 0) then
+    local window = math.floor(now / windowMillis)
+    local currentKey = limitKey .. ':' .. window
+    local previous = tonumber(redis.call('get', limitKey .. ':' .. (window - 1)) or '0')
+    local current = tonumber(redis.call('get', currentKey) or '0')
+    -- 上一窗口的计数按剩余比例折算
+    local weight = 1 - (now % windowMillis) / windowMillis
+    if (previous * weight + current >= limit) then
+        return 5
+    end
+    redis.call('incr', currentKey)
+    redis.call('pexpire', currentKey, windowMillis * 2)
+end
+-- 3.判断用户已购数量加上本次购买是否超过限购 HGET orderKey userId
+local bought = tonumber(redis.call('hget', orderKey, userId) or '0')
+if (bought + quantity > userLimit) then
+    -- 3.1.超过限购，返回2
+    return 2
+end
+-- 4.本分片库存充足，扣库存并累加用户已购数量
+local stock = tonumber(redis.call('get', stockKey) or '0')
+if (stock >= quantity) then
+    redis.call('incrby', stockKey, -quantity)
+    redis.call('hincrby', orderKey, userId, quantity)
+    return 0
+end
+-- 5.本分片库存不够，先占住用户的购买名额，由调用方去其他分片借库存，借不到再释放
+redis.call('hincrby', orderKey, userId, quantity)
+if (stock <= 0) then
+    -- 5.1.本分片已耗尽，返回6
+    return 6
+end
+-- 5.2.本分片还有库存但不够本次购买数量，返回7
+return 7
@@ -0,0 +1,12 @@
+-- 从指定分片借库存，一次借够购买数量：成功返回1，分片已耗尽返回0，分片还有库存但不够返回2
+local stockKey = KEYS[1]
+local quantity = tonumber(ARGV[1])
+local stock = tonumber(redis.call('get', stockKey) or '0')
+if (stock >= quantity) then
+    redis.call('incrby', stockKey, -quantity)
+    return 1
+end
+if (stock <= 0) then
+    return 0
+end
+return 2
@@ -1,11 +1,29 @@
 package com.hmdp;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Shop;
 import com.hmdp.entity.User;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.event.OrderQueue;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IUserService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillOrderCompensator;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherCatalog;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.WeightedLaneExecutor;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpPost;
@@ -14,27 +32,51 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
 import sun.net.www.http.HttpClient;
 
 import javax.annotation.Resource;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import org.apache.http.impl.client.HttpClients;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 @SpringBootTest
 class HmDianPingApplicationTests {
     @Resource
@@ -45,6 +87,89 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 用例直接读写缓存时使用的key前缀，不碰业务数据的缓存
+     */
+    private static final String TEST_CACHE_KEY = "cache:test:shop:";
+    private static final String TEST_LOCK_KEY = "lock:test:shop:";
+    /**
+     * 临时券id取负数，不会与数据库中的券冲突
+     */
+    private static final AtomicLong TEMP_VOUCHER_ID = new AtomicLong(-System.currentTimeMillis() * 1000);
+
+    private final List<Long> tempVoucherIds = new ArrayList<>();
+    private final List<Long> tempSeckillVoucherIds = new ArrayList<>();
+    private final List<String> tempKeys = new ArrayList<>();
+
+    /**
+     * @return 只存在于Redis的临时券id，用例结束后删除它的所有key
+     */
+    private long tempVoucherId() {
+        long voucherId = TEMP_VOUCHER_ID.decrementAndGet();
+        tempVoucherIds.add(voucherId);
+        return voucherId;
+    }
+
+    /**
+     * 新建一张进行中的秒杀券并加载到本地目录，用例结束后删除数据库记录和Redis数据
+     */
+    private Long createTempSeckillVoucher(int stock, int userLimit) {
+        Voucher voucher = new Voucher()
+                .setShopId(1L)
+                .setTitle("测试秒杀券")
+                .setPayValue(100L)
+                .setActualValue(100L)
+                .setType(1)
+                .setStock(stock)
+                .setUserLimit(userLimit)
+                .setBeginTime(LocalDateTime.now().minusMinutes(1))
+                .setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        seckillVoucherCatalog.refresh();
+        tempSeckillVoucherIds.add(voucher.getId());
+        return voucher.getId();
+    }
+
+    @AfterEach
+    void cleanUp() {
+        // 1.临时券：库存、订单hash、分片、租约、等候室等key都带券id
+        List<String> keys = new ArrayList<>(tempKeys);
+        for (Long voucherId : tempVoucherIds) {
+            keys.addAll(stringRedisTemplate.keys("*" + voucherId + "*"));
+        }
+        for (Long voucherId : tempSeckillVoucherIds) {
+            voucherService.removeById(voucherId);
+            seckillVoucherService.removeById(voucherId);
+            keys.addAll(stringRedisTemplate.keys("seckill:*" + voucherId));
+        }
+        if (!keys.isEmpty()) {
+            stringRedisTemplate.delete(keys);
+        }
+        if (!tempSeckillVoucherIds.isEmpty()) {
+            seckillVoucherCatalog.refresh();
+        }
+        // 2.测试缓存key通过CacheClient删除，同时清掉本地副本
+        for (String key : stringRedisTemplate.keys(TEST_CACHE_KEY + "*")) {
+            cacheClient.delete(key);
+        }
+        stringRedisTemplate.delete(stringRedisTemplate.keys(TEST_LOCK_KEY + "*"));
+        tempVoucherIds.clear();
+        tempSeckillVoucherIds.clear();
+        tempKeys.clear();
+    }
+
+    /**
+     * @return CacheClient统计中的计数，path为各层的key
+     */
+    @SuppressWarnings("unchecked")
+    private long cacheStat(String... path) {
+        Map<String, Object> stats = cacheClient.stats();
+        for (int i = 0; i < path.length - 1; i++) {
+            stats = (Map<String, Object>) stats.get(path[i]);
+        }
+        return ((Number) stats.get(path[path.length - 1])).longValue();
+    }
+
     @Test
     public void testSaveShop() throws InterruptedException {
         shopService.saveShop2Redis(1L, 10L);
@@ -124,6 +249,510 @@ class HmDianPingApplicationTests {
         System.out.println("time = " + (end - begin));
     }
 
+    @Test
+    void testSegmentIdWorker() throws InterruptedException {
+        // 1.与testIdWorker相同的负载，对比每次INCR和号段发号
+        List<List<Long>> incrIds = new ArrayList<>();
+        System.out.println("incr time = " + runIdWorker(() -> redisIdWorker.nextIncrId("test:order"), incrIds));
+        assertIdsValid(incrIds);
+        List<List<Long>> segmentIds = new ArrayList<>();
+        System.out.println("segment time = " + runIdWorker(() -> redisIdWorker.nextSegmentId("test:order"), segmentIds));
+        assertIdsValid(segmentIds);
+        // 2.号段调小到10，3万个id要切换约3000次号段，覆盖并发下的号段用完和预取交接
+        Object segmentSize = ReflectionTestUtils.getField(redisIdWorker, "segmentSize");
+        ReflectionTestUtils.setField(redisIdWorker, "segmentSize", 10);
+        try {
+            List<List<Long>> handoffIds = new ArrayList<>();
+            runIdWorker(() -> redisIdWorker.nextSegmentId("test:order:handoff"), handoffIds);
+            assertIdsValid(handoffIds);
+        } finally {
+            ReflectionTestUtils.setField(redisIdWorker, "segmentSize", segmentSize);
+            tempKeys.addAll(stringRedisTemplate.keys("icr:test:order:*"));
+        }
+    }
+
+    /**
+     * 所有线程的id全局唯一，同一线程内严格递增
+     */
+    private void assertIdsValid(List<List<Long>> idsPerThread) {
+        Set<Long> all = new HashSet<>();
+        for (List<Long> ids : idsPerThread) {
+            assertEquals(100, ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                assertTrue(all.add(ids.get(i)), "重复的id：" + ids.get(i));
+                if (i > 0) {
+                    assertTrue(ids.get(i) > ids.get(i - 1), "线程内id未递增：" + ids.get(i - 1) + " -> " + ids.get(i));
+                }
+            }
+        }
+        assertEquals(30000, all.size());
+    }
+
+    private long runIdWorker(LongSupplier nextId, List<List<Long>> idsPerThread) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(300);
+        Runnable task = () -> {
+            List<Long> ids = new ArrayList<>(100);
+            try {
+                for (int i = 0; i < 100; i++) {
+                    ids.add(nextId.getAsLong());
+                }
+            } finally {
+                synchronized (idsPerThread) {
+                    idsPerThread.add(ids);
+                }
+                latch.countDown();
+            }
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        return System.currentTimeMillis() - begin;
+    }
+
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Test
+    void testOrderPersistThroughput() {
+        int total = 5000;
+        // 逐条落库：与KafkaOrderConsumer一样用10个线程，每单加锁、查重、扣库存、插入
+        ExecutorService pool = Executors.newFixedThreadPool(10);
+        long perRecord = persistOrders(total, orders -> {
+            CountDownLatch latch = new CountDownLatch(orders.size());
+            for (VoucherOrder order : orders) {
+                pool.submit(() -> {
+                    try {
+                        voucherOrderService.handleVoucherOrder(order);
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        pool.shutdown();
+        // 批量落库：每500单一个事务
+        long batch = persistOrders(total, orders -> {
+            for (int i = 0; i < orders.size(); i += 500) {
+                voucherOrderService.createVoucherOrderBatch(orders.subList(i, Math.min(i + 500, orders.size())));
+            }
+        });
+        System.out.println("逐条落库：" + total * 1000L / perRecord + " 单/秒");
+        System.out.println("批量落库：" + total * 1000L / batch + " 单/秒");
+    }
+
+    private long persistOrders(int total, Consumer<List<VoucherOrder>> persister) {
+        // 每轮新建一张库存充足的秒杀券，互不干扰
+        Voucher voucher = new Voucher()
+                .setShopId(1L)
+                .setTitle("压测券")
+                .setPayValue(100L)
+                .setActualValue(100L)
+                .setType(1)
+                .setStock(total)
+                .setBeginTime(LocalDateTime.now())
+                .setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        tempSeckillVoucherIds.add(voucher.getId());
+        List<VoucherOrder> orders = new ArrayList<>(total);
+        for (long userId = 1; userId <= total; userId++) {
+            VoucherOrder order = new VoucherOrder()
+                    .setId(redisIdWorker.nextId("order"))
+                    .setUserId(userId)
+                    .setVoucherId(voucher.getId());
+            orders.add(order);
+            tempKeys.add(RedisConstants.ORDER_STATUS_KEY + order.getId());
+        }
+        long begin = System.currentTimeMillis();
+        persister.accept(orders);
+        long cost = System.currentTimeMillis() - begin;
+        // 每单都落库且只落一次，库存正好扣完
+        try {
+            assertEquals(total, voucherOrderService.query().eq("voucher_id", voucher.getId()).count());
+            assertEquals(0, seckillVoucherService.getById(voucher.getId()).getStock());
+        } finally {
+            voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucher.getId()));
+        }
+        return cost;
+    }
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Test
+    void testShardedStockThroughput() throws InterruptedException {
+        int threads = 200;
+        int perThread = 500;
+        for (int shards : new int[]{1, 2, 4, 8}) {
+            // 用临时券id直接初始化分片库存，库存等于请求数，每个请求都能抢到
+            long voucherId = tempVoucherId();
+            seckillStockShards.initStock(voucherId, threads * perThread, shards);
+            AtomicInteger sold = new AtomicInteger();
+            CountDownLatch latch = new CountDownLatch(threads);
+            long begin = System.currentTimeMillis();
+            for (int t = 0; t < threads; t++) {
+                long firstUser = (long) t * perThread;
+                es.submit(() -> {
+                    try {
+                        for (long userId = firstUser; userId < firstUser + perThread; userId++) {
+                            if (seckillStockShards.seckill(voucherId, userId, shards, 0, Long.MAX_VALUE, 1000, 0, 1, 1) == 0) {
+                                sold.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            latch.await();
+            long cost = System.currentTimeMillis() - begin;
+            System.out.println(shards + " 个分片：" + threads * perThread * 1000L / cost + " 次/秒");
+            // 卖出数等于库存，各分片都扣到0且没有负数，再抢一次返回售罄
+            assertEquals(threads * perThread, sold.get());
+            for (int i = 0; i < shards; i++) {
+                assertEquals("0", stringRedisTemplate.opsForValue().get(SeckillStockShards.stockKey(voucherId, i)));
+            }
+            assertEquals(1, seckillStockShards.seckill(voucherId, -1L, shards, 0, Long.MAX_VALUE, 1000, 0, 1, 1));
+        }
+    }
+
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
+    @Test
+    void testLeaseStockThroughput() throws InterruptedException {
+        int threads = 200;
+        int perThread = 500;
+        // 0表示每个请求执行一次秒杀脚本，对比不同租约块大小
+        for (int block : new int[]{0, 100, 1000}) {
+            long voucherId = tempVoucherId();
+            // 秒杀脚本读分片key，租约读整券库存key
+            if (block == 0) {
+                seckillStockShards.initStock(voucherId, threads * perThread, 1);
+            } else {
+                stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                        String.valueOf(threads * perThread));
+            }
+            AtomicInteger sold = new AtomicInteger();
+            CountDownLatch latch = new CountDownLatch(threads);
+            long begin = System.currentTimeMillis();
+            for (int t = 0; t < threads; t++) {
+                long firstUser = (long) t * perThread;
+                es.submit(() -> {
+                    try {
+                        for (long userId = firstUser; userId < firstUser + perThread; userId++) {
+                            int r = block == 0
+                                    ? seckillStockShards.seckill(voucherId, userId, 1, 0, Long.MAX_VALUE, 1000, 0, 1, 1)
+                                    : seckillStockLease.seckill(voucherId, userId, 1, 1, block, 0, Long.MAX_VALUE).join();
+                            if (r == 0) {
+                                sold.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            latch.await();
+            long cost = System.currentTimeMillis() - begin;
+            System.out.println("租约块 " + block + "：" + threads * perThread * 1000L / cost + " 次/秒");
+            // 卖出数等于库存，Redis库存扣到0且没有负数，再抢一次返回售罄
+            assertEquals(threads * perThread, sold.get());
+            if (block == 0) {
+                assertEquals("0", stringRedisTemplate.opsForValue().get(SeckillStockShards.stockKey(voucherId, 0)));
+                assertEquals(1, seckillStockShards.seckill(voucherId, -1L, 1, 0, Long.MAX_VALUE, 1000, 0, 1, 1));
+            } else {
+                assertEquals("0", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+                assertEquals(1, seckillStockLease.seckill(voucherId, -1L, 1, 1, block, 0, Long.MAX_VALUE).join());
+            }
+        }
+        System.out.println(seckillStockLease.stats());
+    }
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Test
+    void testHotKeyDetector() {
+        // 1个热点店铺，其余10000个店铺各访问一次
+        for (int i = 0; i < 5000; i++) {
+            hotKeyDetector.record(TEST_CACHE_KEY + 1);
+        }
+        for (int i = 2; i < 10002; i++) {
+            hotKeyDetector.record(TEST_CACHE_KEY + i);
+        }
+        System.out.println(hotKeyDetector.stats());
+        assertTrue(hotKeyDetector.isHot(TEST_CACHE_KEY + 1));
+        assertFalse(hotKeyDetector.isHot(TEST_CACHE_KEY + 2));
+    }
+
+    @Resource
+    private SeckillOrderCompensator seckillOrderCompensator;
+
+    @Test
+    void testCompensateFailedOrder() {
+        // 临时券：用户已抢到2件，库存剩8件
+        long voucherId = tempVoucherId();
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, "8");
+        stringRedisTemplate.opsForHash().put(RedisConstants.SECKILL_ORDER_KEY + voucherId, "1", "2");
+        VoucherOrder voucherOrder = new VoucherOrder()
+                .setId(redisIdWorker.nextId("order"))
+                .setUserId(1L)
+                .setVoucherId(voucherId)
+                .setQuantity(2);
+        tempKeys.add(RedisConstants.SECKILL_COMPENSATED_KEY + voucherOrder.getId());
+        tempKeys.add(RedisConstants.ORDER_STATUS_KEY + voucherOrder.getId());
+        // 死信重复投递，只补偿一次
+        assertTrue(seckillOrderCompensator.compensate(voucherOrder, "测试"));
+        assertFalse(seckillOrderCompensator.compensate(voucherOrder, "测试"));
+        assertEquals("10", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+        assertNull(stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_ORDER_KEY + voucherId, "1"));
+    }
+
+    @Test
+    void testWeightedLanes() throws InterruptedException {
+        // 热门券1积压10000单，冷门券2只有100单，1个工作线程
+        WeightedLaneExecutor lanes = new WeightedLaneExecutor("test-lane", 1, 500, 50, new HashMap<>());
+        CountDownLatch cold = new CountDownLatch(100);
+        Runnable work = () -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10000; i++) {
+            lanes.execute(1L, now, work);
+        }
+        for (int i = 0; i < 100; i++) {
+            lanes.execute(2L, now, () -> {
+                work.run();
+                cold.countDown();
+            });
+        }
+        // 冷门券不用等热门券排完：热门券至少要10秒，冷门券5秒内处理完，此时热门券还有积压
+        assertTrue(cold.await(5, TimeUnit.SECONDS));
+        Map<String, Object> stats = lanes.stats();
+        System.out.println("冷门券处理完耗时：" + (System.currentTimeMillis() - now) + "ms");
+        System.out.println(stats);
+        assertTrue(((Number) ((Map<?, ?>) stats.get("1")).get("queued")).intValue() > 0);
+        lanes.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+
+    @Test
+    void testWaitingRoom() {
+        long voucherId = tempVoucherId();
+        long endMillis = System.currentTimeMillis() + 60000;
+        for (long userId = 1; userId <= 5; userId++) {
+            assertEquals(userId, seckillWaitingRoom.join(voucherId, userId, endMillis));
+        }
+        // 重复进入返回原号码
+        assertEquals(3L, seckillWaitingRoom.join(voucherId, 3L, endMillis));
+        // 还没有放行，5号前面5人，每秒放行2人，约3秒
+        Map<String, Object> position = seckillWaitingRoom.position(voucherId, 5, 2);
+        assertEquals(5L, position.get("ahead"));
+        assertEquals(3L, position.get("estimatedWaitSeconds"));
+        // 售罄后关闭，不再发号
+        seckillWaitingRoom.close(voucherId);
+        assertEquals(-1L, seckillWaitingRoom.join(voucherId, 6L, endMillis));
+        System.out.println(seckillWaitingRoom.stats());
+    }
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testTwoLevelCache() throws InterruptedException {
+        // 测试前缀临时配置一级缓存有效期，数据源用内存里的店铺，不碰真实店铺数据
+        assertTrue((Boolean) ((Map<String, Object>) cacheClient.stats().get("l1")).get("enabled"));
+        Map<String, Long> l1Ttls = (Map<String, Long>) ReflectionTestUtils.getField(cacheClient, "l1Ttls");
+        l1Ttls.put(TEST_CACHE_KEY, 60000L);
+        AtomicReference<Shop> db = new AtomicReference<>(new Shop().setId(1L).setName("测试店铺"));
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> loader = id -> {
+            loads.incrementAndGet();
+            return db.get();
+        };
+        Supplier<String> query = () -> cacheClient.queryPassThrough(TEST_CACHE_KEY, 1L, Shop.class, loader,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES).getName();
+        try {
+            // 1.回源写入Redis时会广播失效，本节点也会收到，等广播处理完再继续，避免它删掉刚回填的一级缓存
+            assertEquals("测试店铺", query.get());
+            Thread.sleep(500);
+            // 2.第一次从Redis回填一级缓存，之后999次全部命中一级缓存
+            long hits = cacheStat("l1", "hits");
+            long misses = cacheStat("l1", "misses");
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("测试店铺", query.get());
+            }
+            assertEquals(999, cacheStat("l1", "hits") - hits);
+            assertEquals(1, cacheStat("l1", "misses") - misses);
+            assertEquals(1, loads.get());
+            // 3.与ShopServiceImpl.update相同：先改数据，再删除缓存并广播失效
+            db.set(new Shop().setId(1L).setName("改名店铺"));
+            cacheClient.delete(TEST_CACHE_KEY + 1L);
+            Thread.sleep(500);
+            // 4.失效后一级缓存未命中，回源读到新数据；再从Redis回填一级缓存后重新命中
+            misses = cacheStat("l1", "misses");
+            assertEquals("改名店铺", query.get());
+            assertEquals(2, loads.get());
+            Thread.sleep(500);
+            hits = cacheStat("l1", "hits");
+            for (int i = 0; i < 2; i++) {
+                assertEquals("改名店铺", query.get());
+            }
+            assertEquals(2, cacheStat("l1", "misses") - misses);
+            assertEquals(1, cacheStat("l1", "hits") - hits);
+            assertEquals(2, loads.get());
+            System.out.println(cacheClient.stats());
+        } finally {
+            l1Ttls.remove(TEST_CACHE_KEY);
+        }
+    }
+
+    @Test
+    void testBloomFilterGuard() {
+        // 随机扫描不存在的店铺id，被布隆过滤器拦截，不写空值缓存也不查数据库
+        long rejected = cacheStat("bloomRejected");
+        for (long id = 100000; id < 110000; id++) {
+            shopService.queryById(id);
+        }
+        System.out.println(cacheClient.stats());
+        assertFalse(stringRedisTemplate.hasKey(RedisConstants.CACHE_SHOP_KEY + 100000));
+        // 布隆过滤器有少量误判，误判的id照常查库
+        assertTrue(cacheStat("bloomRejected") - rejected > 9000);
+    }
+
+    @Test
+    void testSingleFlightRebuild() throws InterruptedException {
+        // 缓存失效后200个并发请求，本节点只有一个线程查询数据库
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(200);
+        for (int i = 0; i < 200; i++) {
+            es.submit(() -> {
+                try {
+                    Shop shop = cacheClient.queryWithMutex(TEST_CACHE_KEY, TEST_LOCK_KEY, 1L, Shop.class, id -> {
+                        loads.incrementAndGet();
+                        return shopService.getById(id);
+                    }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                    assertNotNull(shop);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        System.out.println(cacheClient.stats());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void testRefreshAhead() throws InterruptedException {
+        // 缓存中没有时首次访问直接加载；逻辑有效期10秒，持续访问的key在过期前5秒被预刷新，不会读到过期数据
+        long refreshes = cacheStat("refresh", "refreshes");
+        long staleServed = cacheStat("refresh", "staleServed");
+        for (int i = 0; i < 30; i++) {
+            Shop shop = cacheClient.queryWithLogicalExpire(TEST_CACHE_KEY, TEST_LOCK_KEY, 1L,
+                    Shop.class, shopService::getById, 10L, TimeUnit.SECONDS);
+            assertNotNull(shop);
+            Thread.sleep(500);
+        }
+        System.out.println(cacheClient.stats());
+        assertTrue(cacheStat("refresh", "refreshes") > refreshes);
+        assertEquals(staleServed, cacheStat("refresh", "staleServed"));
+    }
+
+    @Test
+    void testQueryBatch() {
+        // 一次MGET，未命中的店铺一次查库并pipeline写回，结果按id顺序返回，不存在的id被跳过
+        List<Long> ids = Arrays.asList(3L, 1L, 2L, -1L, 1L);
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            List<Shop> shops = cacheClient.queryBatch(TEST_CACHE_KEY, ids, Shop.class, missIds -> {
+                        loads.incrementAndGet();
+                        return shopService.listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, shop -> shop));
+                    }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            assertEquals(Arrays.asList(3L, 1L, 2L, 1L), shops.stream().map(Shop::getId).collect(Collectors.toList()));
+        }
+        // 第二次全部命中缓存（不存在的id命中空值），不再查库
+        assertEquals(1, loads.get());
+        List<UserDTO> users = userService.queryUserDTOs(Arrays.asList(2L, 1L));
+        assertEquals(Arrays.asList(2L, 1L), users.stream().map(UserDTO::getId).collect(Collectors.toList()));
+        System.out.println(cacheClient.stats());
+    }
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillVoucherCatalog seckillVoucherCatalog;
+
+    @Test
+    void testRollbackWhenPublishFails() {
+        // 临时秒杀券：库存10件，订单队列投递失败
+        Long voucherId = createTempSeckillVoucher(10, 2);
+        Object target = AopTestUtils.getUltimateTargetObject(voucherOrderService);
+        Object orderQueue = ReflectionTestUtils.getField(target, "orderQueue");
+        ReflectionTestUtils.setField(target, "orderQueue", new OrderQueue() {
+            @Override
+            public void publish(VoucherOrder voucherOrder) {
+                throw new IllegalStateException("订单队列不可用");
+            }
+
+            @Override
+            public CompletableFuture<Void> fail(VoucherOrder voucherOrder, String reason) {
+                return CompletableFuture.completedFuture(null);
+            }
+        });
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        UserHolder.saveUser(user);
+        try {
+            // 脚本已放行，入队失败后返回失败，库存和已购数量都还回去
+            Result result = voucherOrderService.seckillVoucherAsync(voucherId, 2).join();
+            assertFalse(result.getSuccess());
+            assertEquals("10", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+            assertNull(stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_ORDER_KEY + voucherId, "1"));
+        } finally {
+            ReflectionTestUtils.setField(target, "orderQueue", orderQueue);
+            UserHolder.removeUser();
+        }
+    }
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Test
+    void testRestockAfterCommit() {
+        Long voucherId = createTempSeckillVoucher(10, 1);
+        String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
+        // 1.外层事务回滚：数据库补货撤销，Redis库存也不增加
+        transactionTemplate.execute(status -> {
+            assertTrue(voucherService.addSeckillStock(voucherId, 5).getSuccess());
+            assertEquals("10", stringRedisTemplate.opsForValue().get(stockKey));
+            status.setRollbackOnly();
+            return null;
+        });
+        assertEquals("10", stringRedisTemplate.opsForValue().get(stockKey));
+        assertEquals(10, seckillVoucherService.getById(voucherId).getStock());
+        // 2.提交后两边一起增加
+        assertTrue(voucherService.addSeckillStock(voucherId, 5).getSuccess());
+        assertEquals("15", stringRedisTemplate.opsForValue().get(stockKey));
+        assertEquals(15, seckillVoucherService.getById(voucherId).getStock());
+    }
+
     @Autowired
     private IUserService userService;
 
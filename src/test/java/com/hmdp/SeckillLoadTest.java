@@ -0,0 +1,402 @@
+package com.hmdp;
+
+import cn.hutool.core.util.RandomUtil;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.User;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.event.KafkaOrderProducer;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IUserService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillVoucherCatalog;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.KafkaConstants.TOPIC_CREATE_ORDER;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀端到端压测：内嵌Redis、内嵌Kafka、H2代替MySQL，不依赖任何外部环境。
+ * <p>
+ * 按固定到达率（开环）请求 /voucher-order/seckill/{id}，延迟从计划发出时刻算起，
+ * 服务端变慢时不会因为压测线程被拖住而少算排队时间。压测结束后等待订单落库，校验不超卖、不重复下单，
+ * 并输出吞吐、延迟分位、错误分布和落库延迟。实际吞吐低于计划速率的90%时告警，
+ * 低于 loadtest.min-throughput-ratio 时失败：压测机或服务端跟不上，延迟数据已经不能代表计划负载。
+ * <p>
+ * 运行：mvn -B test -Ploadtest [-Dloadtest.rate=1000 -Dloadtest.duration=10 -Dloadtest.users=5000
+ * -Dloadtest.stock=1000 -Dloadtest.concurrency=200 -Dloadtest.path=/async -Dloadtest.seed=1
+ * -Dloadtest.quantity=1 -Dloadtest.user-limit=1 -Dloadtest.lease-block=0 -Dloadtest.min-throughput-ratio=0.5]
+ */
+@Slf4j
+@Tag("loadtest")
+@ActiveProfiles("loadtest")
+@EmbeddedKafka(partitions = 4, topics = TOPIC_CREATE_ORDER)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class SeckillLoadTest {
+    private static final int RATE = Integer.getInteger("loadtest.rate", 1000);
+    private static final int DURATION = Integer.getInteger("loadtest.duration", 10);
+    private static final int USERS = Integer.getInteger("loadtest.users", 5000);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 1000);
+    private static final int CONCURRENCY = Integer.getInteger("loadtest.concurrency", 200);
+    private static final String PATH = System.getProperty("loadtest.path", "");
+    private static final long SEED = Long.getLong("loadtest.seed", 1L);
+    private static final int QUANTITY = Integer.getInteger("loadtest.quantity", 1);
+    private static final int USER_LIMIT = Integer.getInteger("loadtest.user-limit", 1);
+    /**
+     * 大于0时压测券按该块大小使用节点本地库存租约
+     */
+    private static final int LEASE_BLOCK = Integer.getInteger("loadtest.lease-block", 0);
+    /**
+     * 实际吞吐与计划速率之比低于该值时压测失败，0表示只告警不失败
+     */
+    private static final double MIN_THROUGHPUT_RATIO =
+            Double.parseDouble(System.getProperty("loadtest.min-throughput-ratio", "0.5"));
+    /**
+     * 等待订单全部落库的最长时间，毫秒
+     */
+    private static final long PERSIST_TIMEOUT = 60000L;
+
+    private static RedisServer redisServer;
+
+    @LocalServerPort
+    private int port;
+    @Resource
+    private IUserService userService;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillVoucherCatalog seckillVoucherCatalog;
+    @Resource
+    private KafkaOrderProducer kafkaOrderProducer;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ThreadPoolTaskScheduler taskScheduler;
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) throws IOException {
+        int redisPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            redisPort = socket.getLocalPort();
+        }
+        redisServer = RedisServer.newRedisServer().port(redisPort)
+                .setting("bind 127.0.0.1")
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        redisServer.start();
+        registry.add("spring.redis.port", () -> redisPort);
+    }
+
+    /**
+     * 上下文在JVM退出时才关闭，先停掉定时任务（券目录刷新、租约归还、等候室放行等），
+     * 避免关闭过程中继续访问已经停止的Redis和数据库
+     */
+    @AfterEach
+    void stopSchedulers() {
+        taskScheduler.shutdown();
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @Test
+    void seckillUnderLoad() throws Exception {
+        // 1.准备用户、登录token和秒杀券
+        List<String> tokens = createUsers(USERS);
+        Long voucherId = createSeckillVoucher(STOCK);
+        log.info("压测开始：rate={}/s duration={}s users={} stock={} concurrency={} path=seckill/{}{} quantity={} userLimit={}",
+                RATE, DURATION, USERS, STOCK, CONCURRENCY, voucherId, PATH, QUANTITY, USER_LIMIT);
+
+        // 2.开环压测
+        LoadResult result = drive(voucherId, tokens);
+
+        // 3.等待订单落库，统计落库延迟
+        List<Long> lags = awaitPersisted(voucherId, result.orders);
+
+        // 4.输出报告
+        report(result, lags);
+
+        // 5.一致性校验
+        List<VoucherOrder> dbOrders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        String redisStock = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+        int sold = dbOrders.stream().mapToInt(VoucherOrder::getQuantity).sum();
+        log.info("数据库订单数={} 售出件数={} 数据库库存={} Redis库存={}",
+                dbOrders.size(), sold, seckillVoucher.getStock(), redisStock);
+        // 5.1.不超卖
+        assertTrue(sold <= STOCK, "超卖：售出 " + sold + " > 库存 " + STOCK);
+        assertTrue(seckillVoucher.getStock() >= 0, "数据库库存为负：" + seckillVoucher.getStock());
+        assertTrue(redisStock == null || Long.parseLong(redisStock) >= 0, "Redis库存为负：" + redisStock);
+        assertEquals(STOCK, seckillVoucher.getStock() + sold, "库存与售出件数对不上");
+        // 5.2.每人不超过限购
+        Map<Long, Integer> perUser = dbOrders.stream()
+                .collect(Collectors.toMap(VoucherOrder::getUserId, VoucherOrder::getQuantity, Integer::sum));
+        assertTrue(perUser.values().stream().allMatch(q -> q <= USER_LIMIT), "存在超过限购的用户");
+        // 5.3.每个成功响应都落库了，且没有多出来的订单
+        Set<Long> dbIds = dbOrders.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        assertEquals(result.orders.keySet(), dbIds, "成功响应的订单与落库订单不一致");
+        // 6.实际吞吐没有达到计划速率，压测结果不能代表计划负载
+        double throughput = result.latencies.size() / (result.elapsedNanos / 1e9);
+        if (throughput < RATE * 0.9) {
+            log.warn("实际吞吐{}/s低于计划速率{}/s的90%", String.format("%.1f", throughput), RATE);
+        }
+        assertTrue(throughput >= RATE * MIN_THROUGHPUT_RATIO, String.format(
+                "实际吞吐 %.1f/s 低于计划速率 %d/s 的 %.0f%%", throughput, RATE, MIN_THROUGHPUT_RATIO * 100));
+    }
+
+    /**
+     * 批量创建用户并写入登录token，返回token列表，下标即用户序号
+     */
+    private List<String> createUsers(int count) {
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User user = new User();
+            user.setPhone(String.format("1%010d", i));
+            user.setNickName("load_" + i);
+            users.add(user);
+        }
+        userService.saveBatch(users, 1000);
+        List<String> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tokens.add(RandomUtil.randomString(32));
+        }
+        // 与登录接口写入的结构一致：login:token:{token} -> {id, nickName, icon}
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < count; i++) {
+                User user = users.get(i);
+                byte[] key = (RedisConstants.LOGIN_USER_KEY + tokens.get(i)).getBytes(StandardCharsets.UTF_8);
+                Map<byte[], byte[]> hash = new HashMap<>(4);
+                hash.put(bytes("id"), bytes(user.getId().toString()));
+                hash.put(bytes("nickName"), bytes(user.getNickName()));
+                hash.put(bytes("icon"), bytes(user.getIcon()));
+                connection.hMSet(key, hash);
+                connection.expire(key, TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL));
+            }
+            return null;
+        });
+        return tokens;
+    }
+
+    private Long createSeckillVoucher(int stock) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStock(stock);
+        voucher.setUserLimit(USER_LIMIT);
+        voucher.setLeaseBlock(LEASE_BLOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        // 不等定时刷新，立即加载到本地目录
+        seckillVoucherCatalog.refresh();
+        return voucher.getId();
+    }
+
+    /**
+     * 按固定间隔计划每个请求的发出时刻，到点后交给线程池执行。
+     * 线程池打满时请求会晚于计划时刻发出，这段排队时间也计入延迟
+     */
+    private LoadResult drive(Long voucherId, List<String> tokens) throws InterruptedException {
+        String url = "http://127.0.0.1:" + port + "/voucher-order/seckill/" + voucherId + PATH + "?quantity=" + QUANTITY;
+        int total = RATE * DURATION;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / RATE;
+        Random random = new Random(SEED);
+        ExecutorService pool = Executors.newFixedThreadPool(CONCURRENCY);
+        LoadResult result = new LoadResult();
+        CountDownLatch done = new CountDownLatch(total);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            long intended = start + i * intervalNanos;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String token = tokens.get(random.nextInt(tokens.size()));
+            pool.execute(() -> {
+                try {
+                    call(url, token, intended, result);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        result.elapsedNanos = System.nanoTime() - start;
+        pool.shutdown();
+        return result;
+    }
+
+    private void call(String url, String token, long intended, LoadResult result) {
+        String outcome;
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("authorization", token);
+            conn.setConnectTimeout(5000);
+            conn.setReadTimeout(10000);
+            int status = conn.getResponseCode();
+            if (status != 200) {
+                outcome = "HTTP " + status;
+            } else {
+                JSONObject body = JSON.parseObject(read(conn.getInputStream()));
+                if (Boolean.TRUE.equals(body.getBoolean("success"))) {
+                    outcome = "OK";
+                    result.orders.put(body.getLong("data"), System.nanoTime());
+                } else {
+                    outcome = body.getString("errorMsg");
+                }
+            }
+        } catch (IOException e) {
+            outcome = e.getClass().getSimpleName();
+        }
+        result.latencies.add(System.nanoTime() - intended);
+        result.outcomes.computeIfAbsent(outcome, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * 轮询数据库直到所有成功响应的订单都落库，返回每单从响应到落库的延迟（毫秒）
+     */
+    private List<Long> awaitPersisted(Long voucherId, Map<Long, Long> orders) throws InterruptedException {
+        Set<Long> pending = new HashSet<>(orders.keySet());
+        List<Long> lags = new ArrayList<>(pending.size());
+        long deadline = System.currentTimeMillis() + PERSIST_TIMEOUT;
+        while (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+            long now = System.nanoTime();
+            List<Object> ids = voucherOrderService.listObjs(voucherOrderService.query()
+                    .select("id").eq("voucher_id", voucherId).getWrapper());
+            for (Object id : ids) {
+                Long orderId = ((Number) id).longValue();
+                if (pending.remove(orderId)) {
+                    lags.add(TimeUnit.NANOSECONDS.toMillis(now - orders.get(orderId)));
+                }
+            }
+            if (!pending.isEmpty()) {
+                Thread.sleep(20);
+            }
+        }
+        if (!pending.isEmpty()) {
+            log.warn("{}毫秒内仍有{}个订单未落库", PERSIST_TIMEOUT, pending.size());
+        }
+        return lags;
+    }
+
+    private void report(LoadResult result, List<Long> lags) {
+        long[] latencies = result.latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(latencies);
+        long[] lagArray = lags.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(lagArray);
+        double seconds = result.elapsedNanos / 1e9;
+
+        StringBuilder sb = new StringBuilder("\n========== 秒杀压测报告 ==========\n");
+        sb.append(String.format("请求数: %d, 耗时: %.2fs, 计划速率: %d/s, 实际吞吐: %.1f/s%n",
+                latencies.length, seconds, RATE, latencies.length / seconds));
+        sb.append(String.format("延迟(ms) p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+                millis(percentile(latencies, 50)), millis(percentile(latencies, 90)),
+                millis(percentile(latencies, 99)), millis(percentile(latencies, 99.9)),
+                millis(latencies.length == 0 ? 0 : latencies[latencies.length - 1])));
+        sb.append("结果分布:\n");
+        new TreeMap<>(result.outcomes).forEach((k, v) -> sb.append("  ").append(k).append(": ").append(v).append('\n'));
+        sb.append(String.format("落库延迟(ms) 订单数=%d p50=%d p99=%d max=%d%n", lagArray.length,
+                percentile(lagArray, 50), percentile(lagArray, 99),
+                lagArray.length == 0 ? 0 : lagArray[lagArray.length - 1]));
+        sb.append(String.format("Kafka本地缓冲=%d 发送失败=%d 丢弃=%d%n", kafkaOrderProducer.bufferedCount(),
+                kafkaOrderProducer.sendFailureCount(), kafkaOrderProducer.droppedCount()));
+        sb.append("==================================");
+        log.info(sb.toString());
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream is = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class LoadResult {
+        final Map<Long, Long> orders = new ConcurrentHashMap<>();
+        final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        final Map<String, AtomicLong> outcomes = new ConcurrentHashMap<>();
+        long elapsedNanos;
+    }
+}
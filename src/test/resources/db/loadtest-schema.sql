@@ -0,0 +1,53 @@
+-- 压测用H2（MySQL兼容模式）表结构，只包含秒杀链路用到的表
+CREATE TABLE IF NOT EXISTS tb_user (
+  id BIGINT NOT NULL AUTO_INCREMENT,
+  phone VARCHAR(11) NOT NULL,
+  password VARCHAR(128) DEFAULT '',
+  nick_name VARCHAR(32) DEFAULT '',
+  icon VARCHAR(255) DEFAULT '',
+  create_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS tb_voucher (
+  id BIGINT NOT NULL AUTO_INCREMENT,
+  shop_id BIGINT,
+  title VARCHAR(255) NOT NULL,
+  sub_title VARCHAR(255),
+  rules VARCHAR(1024),
+  pay_value BIGINT NOT NULL,
+  actual_value BIGINT NOT NULL,
+  type TINYINT NOT NULL DEFAULT 0,
+  status TINYINT NOT NULL DEFAULT 1,
+  create_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS tb_seckill_voucher (
+  voucher_id BIGINT NOT NULL,
+  stock INT NOT NULL,
+  user_limit INT NOT NULL DEFAULT 1,
+  create_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  begin_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  end_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (voucher_id)
+);
+
+CREATE TABLE IF NOT EXISTS tb_voucher_order (
+  id BIGINT NOT NULL,
+  user_id BIGINT NOT NULL,
+  voucher_id BIGINT NOT NULL,
+  quantity INT NOT NULL DEFAULT 1,
+  pay_type TINYINT NOT NULL DEFAULT 1,
+  status TINYINT NOT NULL DEFAULT 1,
+  create_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  pay_time TIMESTAMP NULL,
+  use_time TIMESTAMP NULL,
+  refund_time TIMESTAMP NULL,
+  update_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id)
+);
+CREATE INDEX IF NOT EXISTS idx_voucher_user ON tb_voucher_order (voucher_id, user_id);